@@ -0,0 +1,31 @@
+plugins {
+    id("java")
+    id("me.champeau.jmh") version "0.7.3"
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+sourceSets {
+    named("main") {
+        // Build the core module for the JVM with minimal shims of the Android APIs it uses
+        java.srcDirs("../core/src/main/java", "src/shims/java")
+    }
+}
+
+dependencies {
+    compileOnly("androidx.annotation:annotation:1.6.0")
+    jmhCompileOnly("androidx.annotation:annotation:1.6.0")
+}
+
+jmh {
+    // Required to read the raw process streams, see Utils.unwrapStream
+    jvmArgs.addAll("--add-opens", "java.base/java.io=ALL-UNNAMED")
+    // Required by the poll(2) shim, see android.system.Os
+    jvmArgs.addAll("--add-opens", "java.base/sun.nio.ch=ALL-UNNAMED")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+}
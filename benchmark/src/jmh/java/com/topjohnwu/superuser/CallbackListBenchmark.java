@@ -0,0 +1,107 @@
+/*
+ * Copyright 2023 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.topjohnwu.superuser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of dispatching lines added to a {@link CallbackList} or a {@link BatchCallbackList}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CallbackListBenchmark {
+
+    private static final int LINES = 1000;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void teardown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int direct() {
+        int[] count = new int[1];
+        CallbackList<String> list = new CallbackList<String>(Runnable::run) {
+            @Override
+            public void onAddElement(String s) {
+                ++count[0];
+            }
+        };
+        for (int i = 0; i < LINES; ++i) {
+            list.add("libsu");
+        }
+        return count[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void executor() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(LINES);
+        CallbackList<String> list = new CallbackList<String>(executor) {
+            @Override
+            public void onAddElement(String s) {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < LINES; ++i) {
+            list.add("libsu");
+        }
+        latch.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void batched() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(LINES);
+        BatchCallbackList<String> list = new BatchCallbackList<String>(executor, null,
+                BatchCallbackList.DEFAULT_MAX_ELEMENTS, BatchCallbackList.FRAME_DELAY) {
+            @Override
+            public void onAddElements(List<String> elements) {
+                for (int i = 0; i < elements.size(); ++i) {
+                    latch.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < LINES; ++i) {
+            list.add("libsu");
+        }
+        list.flush();
+        latch.await();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2023 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.topjohnwu.superuser;
+
+import android.os.Build;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of jobs on a {@code /bin/sh} process.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JobBenchmark {
+
+    private static final int JOBS = 100;
+
+    @Param({"false", "true"})
+    public boolean pipeline;
+
+    // 19 demultiplexes the outputs with helper threads, 21 with poll(2)
+    @Param({"19", "21"})
+    public int sdk;
+
+    private Shell shell;
+
+    @Setup
+    public void setup() throws IOException {
+        Build.VERSION.SDK_INT = sdk;
+        shell = Shell.Builder.create()
+                .setFlags(pipeline ? Shell.FLAG_PIPELINE_JOBS : 0)
+                .build(Runtime.getRuntime().exec("sh"));
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        shell.close();
+    }
+
+    @Benchmark
+    public Shell.Result exec() {
+        return shell.newJob().add("echo libsu").to(new ArrayList<>()).exec();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(JOBS)
+    public Shell.Result enqueue() throws ExecutionException, InterruptedException {
+        Future<Shell.Result> last = null;
+        for (int i = 0; i < JOBS; ++i) {
+            last = shell.newJob().add("echo libsu").to(new ArrayList<>()).enqueue();
+        }
+        return last.get();
+    }
+
+    @Benchmark
+    public Shell.Result lines() {
+        return shell.newJob().add("seq 1 10000").to(new ArrayList<>()).exec();
+    }
+
+    @Benchmark
+    public String fastCmd() {
+        return ShellUtils.fastCmd(shell, "echo libsu");
+    }
+}
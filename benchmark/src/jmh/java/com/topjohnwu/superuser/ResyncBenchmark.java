@@ -0,0 +1,67 @@
+/*
+ * Copyright 2023 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.topjohnwu.superuser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of jobs with and without the resync before each of them.
+ * Jobs normally leave the shell in sync, so the resync is forced by clearing
+ * the state the shell keeps track of.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ResyncBenchmark {
+
+    @Param({"false", "true"})
+    public boolean resync;
+
+    private Shell shell;
+    private Field inSync;
+
+    @Setup
+    public void setup() throws IOException, ReflectiveOperationException {
+        shell = Shell.Builder.create().build(Runtime.getRuntime().exec("sh"));
+        inSync = shell.getClass().getDeclaredField("inSync");
+        inSync.setAccessible(true);
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        shell.close();
+    }
+
+    @Benchmark
+    public Shell.Result exec() throws IllegalAccessException {
+        if (resync)
+            inSync.setBoolean(shell, false);
+        return shell.newJob().add("echo libsu").to(new ArrayList<>()).exec();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.topjohnwu.superuser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Contention of multiple threads submitting tasks to the same shell.
+ * The tasks do not run any commands, so the cost of scheduling dominates.
+ * Raw tasks leave the shell out of sync, so each task also pays for a resync,
+ * see {@link ResyncBenchmark} for its cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SchedulerBenchmark {
+
+    private static final int TASKS = 64;
+    private static final Shell.Task NOOP = (stdin, stdout, stderr) -> {};
+
+    private Shell shell;
+
+    @State(Scope.Thread)
+    public static class Submitter {
+        final Semaphore done = new Semaphore(0);
+        final Shell.Task task = (stdin, stdout, stderr) -> done.release();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        shell = Shell.Builder.create().build(Runtime.getRuntime().exec("sh"));
+    }
+
+    @TearDown
+    public void teardown() throws IOException {
+        shell.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void exec1() throws IOException {
+        shell.execTask(NOOP);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void exec4() throws IOException {
+        shell.execTask(NOOP);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void exec16() throws IOException {
+        shell.execTask(NOOP);
+    }
+
+    private void submit(Submitter s) throws InterruptedException {
+        for (int i = 0; i < TASKS; ++i) {
+            shell.submitTask(s.task);
+        }
+        s.done.acquire(TASKS);
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(TASKS)
+    public void submit1(Submitter s) throws InterruptedException {
+        submit(s);
+    }
+
+    @Benchmark
+    @Threads(4)
+    @OperationsPerInvocation(TASKS)
+    public void submit4(Submitter s) throws InterruptedException {
+        submit(s);
+    }
+
+    @Benchmark
+    @Threads(16)
+    @OperationsPerInvocation(TASKS)
+    public void submit16(Submitter s) throws InterruptedException {
+        submit(s);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2023 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.topjohnwu.superuser.internal;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.topjohnwu.superuser.CompactLineList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line throughput of {@link StreamGobbler} parsing the outputs of a single job.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StreamGobblerBenchmark {
+
+    private static final int LINES = 10000;
+
+    @Param({"16", "256"})
+    public int length;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        byte[] line = new byte[length + 1];
+        Arrays.fill(line, (byte) 'a');
+        line[length] = '\n';
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < LINES; ++i) {
+            out.write(line, 0, line.length);
+        }
+        byte[] end = (JobTask.END_UUID + "\n0\n").getBytes(UTF_8);
+        out.write(end, 0, end.length);
+        data = out.toByteArray();
+    }
+
+    private StreamGobbler gobbler() {
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        return new StreamGobbler(in, in);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public List<String> toList() {
+        List<String> list = new ArrayList<>(LINES);
+        StreamGobbler g = gobbler();
+        g.begin(new StreamGobbler.ListSink(list), true);
+        g.finish();
+        return list;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public List<String> toCompactList() {
+        CompactLineList list = new CompactLineList();
+        StreamGobbler g = gobbler();
+        g.begin(list::onLine, true);
+        g.finish();
+        return list;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int discard() {
+        StreamGobbler g = gobbler();
+        g.begin(null, true);
+        g.finish();
+        return g.getCode();
+    }
+}
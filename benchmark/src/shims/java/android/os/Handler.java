@@ -0,0 +1,48 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * All handlers post to a single thread acting as the main thread.
+ */
+public class Handler {
+
+    static final ScheduledExecutorService MAIN = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "main");
+        t.setDaemon(true);
+        Looper.MAIN.thread = t;
+        return t;
+    });
+
+    public Handler(Looper looper) {}
+
+    public boolean post(Runnable r) {
+        MAIN.execute(r);
+        return true;
+    }
+
+    public boolean postDelayed(Runnable r, long delayMillis) {
+        MAIN.schedule(r, delayMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public void removeCallbacks(Runnable r) {}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.system;
+
+import java.io.FileDescriptor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * poll(2) through the JDK's own wrapper, {@code sun.nio.ch.Net.poll}, which only takes
+ * a single file descriptor. Multiple descriptors are checked without blocking first,
+ * then waited on in turns of {@link #SLICE_MS}. Requires
+ * {@code --add-opens java.base/sun.nio.ch=ALL-UNNAMED}.
+ */
+public class Os {
+
+    private static final int SLICE_MS = 1;
+    private static final Method POLL;
+
+    static {
+        try {
+            Class<?> net = Class.forName("sun.nio.ch.Net");
+            POLL = net.getDeclaredMethod("poll", FileDescriptor.class, int.class, long.class);
+            POLL.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static int poll(StructPollfd pfd, long timeoutMs) throws ErrnoException {
+        try {
+            pfd.revents = (short) (int) POLL.invoke(null, pfd.fd, (int) pfd.events, timeoutMs);
+            return pfd.revents != 0 ? 1 : 0;
+        } catch (InvocationTargetException e) {
+            ErrnoException ex = new ErrnoException();
+            ex.initCause(e.getCause());
+            throw ex;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static int poll(StructPollfd[] fds, int timeoutMs) throws ErrnoException {
+        if (fds.length == 1)
+            return poll(fds[0], timeoutMs);
+        long deadline = timeoutMs < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMs;
+        for (;;) {
+            int ready = 0;
+            for (StructPollfd pfd : fds) {
+                ready += poll(pfd, 0);
+            }
+            if (ready != 0)
+                return ready;
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return 0;
+            if (poll(fds[0], Math.min(left, SLICE_MS)) != 0) {
+                // Also report the other descriptors that became ready meanwhile
+                for (int i = 1; i < fds.length; ++i) {
+                    ready += poll(fds[i], 0);
+                }
+                return ready + 1;
+            }
+        }
+    }
+}
@@ -79,6 +79,10 @@ allprojects {
 
     configurations.create("javadocDeps")
     afterEvaluate {
+        // Plain JVM projects, e.g. benchmarks
+        if (extensions.findByName("android") == null)
+            return@afterEvaluate
+
         android {
             compileSdk {
                 version = release(36) {
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.topjohnwu.superuser.internal.ShellTimer;
+import com.topjohnwu.superuser.internal.UiThreadHandler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A {@link CallbackList} that delivers new elements in batches with {@code onAddElements}.
+ * <p>
+ * {@link CallbackList} runs one task on the executor for every element added, which floods
+ * the main thread when a command outputs lots of lines. This class collects new elements
+ * and delivers them together when either {@code maxElements} elements are collected, or
+ * {@code maxDelay} milliseconds passed since the first element of the batch was added.
+ * The default delay is {@link #FRAME_DELAY}, so a view showing the elements is updated at
+ * most once per frame.
+ * <p>
+ * Elements still waiting when the command finishes are delivered after the delay,
+ * or immediately by calling {@link #flush()}. Batches are always delivered one at a time
+ * in the order of addition, even with an executor running multiple threads.
+ */
+public abstract class BatchCallbackList<E> extends CallbackList<E> {
+
+    /**
+     * The default maximum delay in milliseconds, about the duration of a frame at 60Hz.
+     */
+    public static final long FRAME_DELAY = 16;
+
+    /**
+     * The default maximum number of elements in a batch.
+     */
+    public static final int DEFAULT_MAX_ELEMENTS = 256;
+
+    private final int maxElements;
+    private final long maxDelay;
+    // The timer only hops to the callback executor, as it must never run user code
+    private final Runnable flushTask = () -> Shell.CALLBACK_EXECUTOR.execute(this::flush);
+    private final Runnable drainTask = this::drain;
+
+    @GuardedBy("this")
+    private ArrayList<E> pending = new ArrayList<>();
+    @GuardedBy("this")
+    @Nullable private ScheduledFuture<?> flushTimer;
+    // Batches waiting for delivery, taken out in order by a single task on the executor
+    @GuardedBy("this")
+    private final ArrayDeque<List<E>> ready = new ArrayDeque<>();
+    @GuardedBy("this")
+    private boolean draining = false;
+
+    /**
+     * {@link #onAddElements(List)} runs on the main thread with the default batch limits;
+     * no backing list.
+     */
+    protected BatchCallbackList() {
+        this(UiThreadHandler.executor, null, DEFAULT_MAX_ELEMENTS, FRAME_DELAY);
+    }
+
+    /**
+     * {@link #onAddElements(List)} runs on the main thread with the default batch limits;
+     * sets a backing list.
+     */
+    protected BatchCallbackList(@Nullable List<E> base) {
+        this(UiThreadHandler.executor, base, DEFAULT_MAX_ELEMENTS, FRAME_DELAY);
+    }
+
+    /**
+     * {@link #onAddElements(List)} runs on the main thread; no backing list.
+     * @param maxElements the maximum number of elements in a batch.
+     * @param maxDelay the maximum time in milliseconds an element waits before delivery.
+     */
+    protected BatchCallbackList(int maxElements, long maxDelay) {
+        this(UiThreadHandler.executor, null, maxElements, maxDelay);
+    }
+
+    /**
+     * {@link #onAddElements(List)} runs with the executor; sets a backing list.
+     * @param maxElements the maximum number of elements in a batch.
+     * @param maxDelay the maximum time in milliseconds an element waits before delivery.
+     */
+    protected BatchCallbackList(@NonNull Executor executor, @Nullable List<E> base,
+                                int maxElements, long maxDelay) {
+        super(executor, base);
+        this.maxElements = Math.max(maxElements, 1);
+        this.maxDelay = Math.max(maxDelay, 0);
+    }
+
+    /**
+     * The callback when new elements are added.
+     * <p>
+     * Which thread it runs on depends on which constructor is used to construct the instance.
+     * @param elements the new elements in the order of addition.
+     */
+    public abstract void onAddElements(@NonNull List<E> elements);
+
+    /**
+     * Deliver a single element as a batch.
+     * <p>
+     * Elements added to this list are always delivered with {@link #onAddElements(List)}.
+     */
+    @Override
+    public void onAddElement(E e) {
+        onAddElements(Collections.singletonList(e));
+    }
+
+    /**
+     * @see List#add(int, Object)
+     */
+    @Override
+    public void add(int i, E s) {
+        if (mBase != null)
+            mBase.add(i, s);
+        boolean post = false;
+        synchronized (this) {
+            pending.add(s);
+            if (pending.size() >= maxElements) {
+                post = cutBatch();
+            } else if (flushTimer == null) {
+                flushTimer = ShellTimer.schedule(flushTask, maxDelay);
+            }
+        }
+        if (post)
+            mExecutor.execute(drainTask);
+    }
+
+    /**
+     * Deliver all elements waiting in the current batch immediately.
+     */
+    public void flush() {
+        boolean post;
+        synchronized (this) {
+            if (flushTimer != null) {
+                flushTimer.cancel(false);
+                flushTimer = null;
+            }
+            if (pending.isEmpty())
+                return;
+            post = cutBatch();
+        }
+        if (post)
+            mExecutor.execute(drainTask);
+    }
+
+    /**
+     * Move the current batch to the delivery queue.
+     * @return true if the caller has to post {@link #drainTask} to the executor.
+     */
+    @GuardedBy("this")
+    private boolean cutBatch() {
+        ready.add(Collections.unmodifiableList(pending));
+        pending = new ArrayList<>();
+        return claimDrain();
+    }
+
+    @GuardedBy("this")
+    private boolean claimDrain() {
+        if (draining || ready.isEmpty())
+            return false;
+        draining = true;
+        return true;
+    }
+
+    private void drain() {
+        boolean done = false;
+        try {
+            for (;;) {
+                List<E> batch;
+                synchronized (this) {
+                    batch = ready.poll();
+                    if (batch == null) {
+                        draining = false;
+                        done = true;
+                        return;
+                    }
+                }
+                onAddElements(batch);
+            }
+        } finally {
+            if (!done) {
+                // The callback threw, continue with the rest in a new task
+                boolean post;
+                synchronized (this) {
+                    draining = false;
+                    post = claimDrain();
+                }
+                if (post)
+                    mExecutor.execute(drainTask);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import androidx.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A {@link List} of lines stored compactly in a single byte array.
+ * <p>
+ * Instead of keeping a {@link String} object for every line, all lines are stored as UTF-8
+ * bytes back-to-back in one array, along with the offsets where each line ends. A line is
+ * only decoded into a new {@code String} when it is accessed with {@link #get(int)}, so
+ * the memory used to store a large output is close to the size of the output itself.
+ * Use {@link #forEachRaw(Shell.RawLineCallback)} to go through the lines without decoding
+ * or copying them at all.
+ * <p>
+ * Pass an instance to {@link Shell.Job#to(List)} or {@link Shell.Job#to(List, List)} to
+ * store the outputs of a job: the data is copied directly from the stream of the shell.
+ * New lines can only be appended to the end of the list, and the list is not thread safe.
+ */
+public final class CompactLineList extends AbstractList<String>
+        implements RandomAccess, Shell.RawLineCallback {
+
+    private byte[] data = new byte[8192];
+    private int[] ends = new int[128];
+    private int size = 0;
+
+    /**
+     * Append a line encoded in UTF-8 to the list.
+     */
+    @Override
+    public void onLine(@NonNull byte[] buf, int off, int len) {
+        int start = size == 0 ? 0 : ends[size - 1];
+        int end = start + len;
+        if (end > data.length)
+            data = Arrays.copyOf(data, Math.max(data.length * 2, Math.max(end, 1024)));
+        if (size == ends.length)
+            ends = Arrays.copyOf(ends, Math.max(size * 2, 16));
+        System.arraycopy(buf, off, data, start, len);
+        ends[size++] = end;
+        ++modCount;
+    }
+
+    private int start(int i) {
+        return i == 0 ? 0 : ends[i - 1];
+    }
+
+    /**
+     * Decode the line at the specified position. A new {@code String} is created every time.
+     * @see List#get(int)
+     */
+    @Override
+    public String get(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        int start = start(i);
+        return new String(data, start, ends[i] - start, UTF_8);
+    }
+
+    /**
+     * Append a line to the end of the list.
+     * @param i must be the same as {@link #size()}.
+     * @throws UnsupportedOperationException if {@code i} is not the end of the list.
+     * @see List#add(int, Object)
+     */
+    @Override
+    public void add(int i, String s) {
+        if (i != size)
+            throw new UnsupportedOperationException();
+        byte[] b = s.getBytes(UTF_8);
+        onLine(b, 0, b.length);
+    }
+
+    /**
+     * @see List#size()
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @see List#clear()
+     */
+    @Override
+    public void clear() {
+        size = 0;
+        ++modCount;
+    }
+
+    /**
+     * Go through all lines without decoding or copying them.
+     * @param action called for each line in order. The data is only valid during the call.
+     */
+    public void forEachRaw(@NonNull Shell.RawLineCallback action) {
+        for (int i = 0; i < size; ++i) {
+            int start = start(i);
+            action.onLine(data, start, ends[i] - start);
+        }
+    }
+
+    /**
+     * @return the total length of all lines in bytes, excluding new line characters.
+     */
+    public int byteLength() {
+        return size == 0 ? 0 : ends[size - 1];
+    }
+
+    /**
+     * Release the unused capacity of the internal storage.
+     */
+    public void trimToSize() {
+        data = Arrays.copyOf(data, byteLength());
+        ends = Arrays.copyOf(ends, size);
+    }
+}
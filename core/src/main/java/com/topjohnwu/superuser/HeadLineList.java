@@ -0,0 +1,121 @@
+/*
+ * Copyright 2023 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.topjohnwu.superuser;
+
+import androidx.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A {@link List} that stops collecting lines after a limit is reached.
+ * <p>
+ * Pass an instance to {@link Shell.Job#to(List)} or {@link Shell.Job#to(List, List)} to
+ * only keep the beginning of the outputs of a job. The rest of the outputs are still
+ * consumed, but are dropped without allocating any memory.
+ * Lines are stored compactly like {@link CompactLineList}.
+ * New lines can only be appended to the end of the list, and the list is not thread safe.
+ */
+public final class HeadLineList extends AbstractList<String>
+        implements RandomAccess, Shell.RawLineCallback {
+
+    private final int maxLines;
+    private final CompactLineList lines = new CompactLineList();
+    private long dropped = 0;
+
+    /**
+     * @param maxLines the maximum number of lines to keep.
+     */
+    public HeadLineList(int maxLines) {
+        if (maxLines <= 0)
+            throw new IllegalArgumentException("Limit must be positive");
+        this.maxLines = maxLines;
+    }
+
+    /**
+     * Append a line encoded in UTF-8 to the list, or drop it if the list is full.
+     */
+    @Override
+    public void onLine(@NonNull byte[] buf, int off, int len) {
+        if (lines.size() < maxLines) {
+            lines.onLine(buf, off, len);
+            ++modCount;
+        } else {
+            ++dropped;
+        }
+    }
+
+    /**
+     * Decode the line at the specified position. A new {@code String} is created every time.
+     * @see List#get(int)
+     */
+    @Override
+    public String get(int i) {
+        return lines.get(i);
+    }
+
+    /**
+     * Append a line to the end of the list, or drop it if the list is full.
+     * @param i must be the same as {@link #size()}.
+     * @throws UnsupportedOperationException if {@code i} is not the end of the list.
+     * @see List#add(int, Object)
+     */
+    @Override
+    public void add(int i, String s) {
+        if (i != size())
+            throw new UnsupportedOperationException();
+        if (lines.size() < maxLines) {
+            lines.add(s);
+            ++modCount;
+        } else {
+            ++dropped;
+        }
+    }
+
+    /**
+     * @see List#size()
+     */
+    @Override
+    public int size() {
+        return lines.size();
+    }
+
+    /**
+     * @see List#clear()
+     */
+    @Override
+    public void clear() {
+        lines.clear();
+        dropped = 0;
+        ++modCount;
+    }
+
+    /**
+     * Go through all lines without decoding or copying them.
+     * @param action called for each line in order. The data is only valid during the call.
+     */
+    public void forEachRaw(@NonNull Shell.RawLineCallback action) {
+        lines.forEachRaw(action);
+    }
+
+    /**
+     * @return the number of lines dropped after the list was full.
+     */
+    public long getDroppedLines() {
+        return dropped;
+    }
+}
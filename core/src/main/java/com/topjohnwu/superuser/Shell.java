@@ -23,21 +23,26 @@ import android.content.Context;
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 
 import com.topjohnwu.superuser.internal.BuilderImpl;
 import com.topjohnwu.superuser.internal.MainShell;
+import com.topjohnwu.superuser.internal.ResultCache;
 import com.topjohnwu.superuser.internal.UiThreadHandler;
 import com.topjohnwu.superuser.internal.Utils;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.annotation.Retention;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
@@ -99,18 +104,88 @@ public abstract class Shell implements Closeable {
     /* Preserve (1 << 3) due to historical reasons */
     /* Preserve (1 << 4) due to historical reasons */
 
+    /**
+     * If set, jobs queued in the shell are pipelined.
+     * <p>
+     * Normally, a shell writes the commands of a job to STDIN only after all output
+     * of the previous job is consumed. When this flag is set, all {@link Job}s waiting in the
+     * queue are written to STDIN back-to-back, and their outputs are separated afterwards.
+     * This removes the idle time between jobs and greatly improves the throughput when running
+     * lots of small jobs with {@link Job#submit()} or {@link Job#enqueue()}.
+     * <p>
+     * Only enable pipelining if none of the commands read from STDIN; otherwise, those
+     * commands would consume the commands of the jobs queued after them.
+     * <p>
+     * Constant value {@value}.
+     */
+    public static final int FLAG_PIPELINE_JOBS = (1 << 5);
+
+    /**
+     * If set, all candidate commands are started in parallel when creating a root shell.
+     * <p>
+     * Normally, {@code su --mount-master} (if {@link #FLAG_MOUNT_MASTER} is set), {@code su},
+     * and {@code sh} are tried one after another until a usable shell is created, and the root
+     * command that worked last time is always tried first. When this flag is set, all commands
+     * are started at the same time; the first root shell successfully created is used, and
+     * all other shells are closed. Note that some root solutions may request root access
+     * more than once when multiple {@code su} commands are started at the same time.
+     * <p>
+     * Constant value {@value}.
+     */
+    public static final int FLAG_PARALLEL_PROBE = (1 << 6);
+
+    /**
+     * If set, the shell is watched in the background and replaced when it dies.
+     * <p>
+     * Normally, the death of a shell is only noticed when it is used, and all jobs queued
+     * in a dead shell fail. When this flag is set, the process of the shell is checked
+     * periodically, and as soon as it dies, a new shell is created with the same
+     * {@link Builder}, running all {@link Initializer}s again. If the dead shell was the main
+     * shell, the new shell becomes the main shell. Jobs marked with
+     * {@link Job#idempotent(boolean)} that have not started running are replayed in the new
+     * shell, including jobs submitted to the dead shell afterwards; other jobs fail as usual.
+     * <p>
+     * This flag is ignored for shells created with {@link Builder#build(Process)}, as
+     * there is no way to start the same process again.
+     * <p>
+     * Constant value {@value}.
+     */
+    public static final int FLAG_AUTO_RESPAWN = (1 << 7);
+
     @Retention(SOURCE)
-    @IntDef(value = {FLAG_NON_ROOT_SHELL, FLAG_MOUNT_MASTER, FLAG_REDIRECT_STDERR}, flag = true)
+    @IntDef(value = {FLAG_NON_ROOT_SHELL, FLAG_MOUNT_MASTER, FLAG_REDIRECT_STDERR,
+            FLAG_PIPELINE_JOBS, FLAG_PARALLEL_PROBE, FLAG_AUTO_RESPAWN}, flag = true)
     @interface ConfigFlags {}
 
     /**
      * The {@link Executor} that manages all worker threads used in {@code libsu}.
      * <p>
+     * The default executor is a {@link ShellExecutor} created with
+     * {@link ShellExecutor#newIoExecutor(String, int)}, which reuses up to 32 threads.
+     * It is not bounded: tasks submitted while all of them are busy run in new threads.
+     * <p>
      * Note: If the developer decides to replace the default Executor, keep in mind that
-     * each {@code Shell} instance requires at least 3 threads to operate properly.
+     * tasks submitted to this executor block on I/O and may wait for each other,
+     * so it must never queue tasks. Each {@code Shell} instance requires up to 3 threads
+     * while running jobs. {@link ShellExecutor#newVirtualThreadExecutor(String)} can be
+     * used on runtimes supporting virtual threads.
      */
     @NonNull
-    public static Executor EXECUTOR = Executors.newCachedThreadPool();
+    public static Executor EXECUTOR = ShellExecutor.newIoExecutor("libsu-io", 32);
+
+    /**
+     * The {@link Executor} for short tasks that should not block.
+     * <p>
+     * {@code libsu} runs its own periodic chores on it, such as evicting idle shells of the
+     * shell pool. Callbacks do not run on it unless it is passed explicitly to APIs accepting
+     * an executor, for example {@link Job#submit(Executor, ResultCallback)}, to run the
+     * callbacks in the background without blocking the threads running the shell.
+     * The default executor is a {@link ShellExecutor} created with
+     * {@link ShellExecutor#newCallbackExecutor(String, int)}, running at most 4 threads.
+     */
+    @NonNull
+    public static Executor CALLBACK_EXECUTOR =
+            ShellExecutor.newCallbackExecutor("libsu-callback", 4);
 
     /**
      * Set to {@code true} to enable verbose logging throughout the library.
@@ -153,9 +228,8 @@ public abstract class Shell implements Closeable {
      * so be extra careful when calling this method from the main thread!
      * <p>
      * A good practice is to "preheat" the main shell during app initialization
-     * (e.g. the splash screen) by either calling this method in a background thread or
-     * calling {@link #getShell(GetShellCallback)} so subsequent calls to this function
-     * returns immediately.
+     * (e.g. the splash screen) by calling {@link #prewarm()} so subsequent calls to this
+     * function returns immediately.
      * @return the cached/created main shell instance.
      * @see Builder#build()
      */
@@ -190,6 +264,35 @@ public abstract class Shell implements Closeable {
         MainShell.get(executor, callback);
     }
 
+    /**
+     * Start creating the main shell in the background.
+     * <p>
+     * Same as calling {@code prewarm(null)}.
+     * @see #prewarm(Executor)
+     */
+    public static void prewarm() {
+        MainShell.prewarm(null);
+    }
+
+    /**
+     * Start creating the main shell in the background.
+     * <p>
+     * The main shell is constructed with the default {@link Builder}, and all
+     * {@link Initializer}s are run on the executor. Call this as early as possible, such as
+     * in {@code Application.onCreate()}, so that the first command does not have to wait for
+     * the root permission request and the shell initialization.
+     * Calls to {@link #getShell()} or jobs created with {@link #cmd(String...)} while the
+     * shell is being created wait for the same shell instead of creating another one.
+     * If the creation fails, the next request of the main shell will try again.
+     * <p>
+     * Nothing happens if the main shell is already created.
+     * @param executor the executor used to create the shell.
+     *                 If {@code null} is passed, {@link #EXECUTOR} will be used.
+     */
+    public static void prewarm(@Nullable Executor executor) {
+        MainShell.prewarm(executor);
+    }
+
     /**
      * Get the cached main shell.
      * @return a {@code Shell} instance. {@code null} can be returned either when
@@ -231,6 +334,9 @@ public abstract class Shell implements Closeable {
      * The main shell will NOT be requested until the developer invokes either
      * {@link Job#exec()}, {@link Job#enqueue()}, or {@code Job.submit(...)}. This makes it
      * possible to construct {@link Job}s before the program has created any root shell.
+     * <p>
+     * If the shell pool is enabled with {@link Builder#setPoolSize(int, int)}, the job
+     * can be executed by any shell in the pool.
      * @return a job that the developer can execute or submit later.
      * @see Job#add(String...)
      */
@@ -251,6 +357,9 @@ public abstract class Shell implements Closeable {
      * The main shell will NOT be requested until the developer invokes either
      * {@link Job#exec()}, {@link Job#enqueue()}, or {@code Job.submit(...)}. This makes it
      * possible to construct {@link Job}s before the program has created any root shell.
+     * <p>
+     * If the shell pool is enabled with {@link Builder#setPoolSize(int, int)}, the job
+     * can be executed by any shell in the pool.
      * @see Job#add(InputStream)
      */
     @NonNull
@@ -301,6 +410,13 @@ public abstract class Shell implements Closeable {
     @NonNull
     public abstract Job newJob();
 
+    /**
+     * Construct a new {@link Batch} that uses the shell for execution.
+     * @return a batch that the developer can add jobs to and execute later.
+     */
+    @NonNull
+    public abstract Batch newBatch();
+
     /**
      * Get the status of the shell.
      * @return the status of the shell.
@@ -390,7 +506,9 @@ public abstract class Shell implements Closeable {
          * Set flags to control how a new {@code Shell} will be constructed.
          * @param flags the desired flags.
          *              Value is either 0 or bitwise-or'd value of
-         *              {@link #FLAG_NON_ROOT_SHELL} or {@link #FLAG_MOUNT_MASTER}
+         *              {@link #FLAG_NON_ROOT_SHELL}, {@link #FLAG_MOUNT_MASTER},
+         *              {@link #FLAG_PIPELINE_JOBS}, {@link #FLAG_PARALLEL_PROBE},
+         *              or {@link #FLAG_AUTO_RESPAWN}
          * @return this Builder object for chaining of calls.
          */
         @NonNull
@@ -417,6 +535,53 @@ public abstract class Shell implements Closeable {
         @NonNull
         public abstract Builder setCommands(String... commands);
 
+        /**
+         * Enable the shell pool for the main shell.
+         * <p>
+         * By default, all jobs created with {@link #cmd(String...)} and {@link #cmd(InputStream)}
+         * are queued and run one after another in the main shell. With the shell pool enabled,
+         * these jobs are dispatched to any idle shell in a pool of shells created with this
+         * builder, allowing multiple jobs to run in parallel. The main shell is always
+         * a member of the pool. Additional shells are created on-demand in the background when
+         * all shells in the pool are busy, and shells that stayed idle for longer than the
+         * keep-alive time set with {@link #setPoolKeepAliveTime(long)} are closed.
+         * <p>
+         * Jobs that rely on states of a specific shell (e.g. environment variables or the
+         * current working directory) should be created with {@link Shell#newJob()} on the
+         * shell instance returned by {@link #getShell()} instead, as those jobs always run
+         * in that specific shell.
+         * <p>
+         * This option only affects the builder used to construct the main shell.
+         * @param min the minimum number of shells to keep alive, including the main shell.
+         * @param max the maximum number of shells in the pool, including the main shell.
+         *            Pass a value less than 2 to disable the shell pool.
+         * @return this Builder object for chaining of calls.
+         */
+        @NonNull
+        public abstract Builder setPoolSize(int min, int max);
+
+        /**
+         * Set the maximum time an idle shell in the pool is kept alive.
+         * <p>
+         * Shells exceeding the minimum pool size set with {@link #setPoolSize(int, int)}
+         * will be closed after staying idle for this amount of time.
+         * @param seconds the keep-alive time in seconds.
+         *                The default keep-alive time is 30 seconds.
+         * @return this Builder object for chaining of calls.
+         */
+        @NonNull
+        public abstract Builder setPoolKeepAliveTime(long seconds);
+
+        /**
+         * Set a {@link Metrics} listener to receive statistics of shells built with this
+         * builder.
+         * @param metrics the listener. Pass {@code null} to disable statistics collection,
+         *                which is the default.
+         * @return this Builder object for chaining of calls.
+         */
+        @NonNull
+        public abstract Builder setMetrics(@Nullable Metrics metrics);
+
         /**
          * Set the {@link Context} to use when creating a shell.
          * <p>
@@ -502,6 +667,13 @@ public abstract class Shell implements Closeable {
          */
         public static final int JOB_NOT_EXECUTED = -1;
 
+        /**
+         * This code indicates that the job was cancelled or timed out. Outputs produced
+         * before the job was killed are still available.
+         * Constant value: {@value}.
+         */
+        public static final int JOB_CANCELLED = -2;
+
         /**
          * Get the output of STDOUT.
          * @return a list of strings that stores the output of STDOUT. Empty list if no output
@@ -544,8 +716,35 @@ public abstract class Shell implements Closeable {
      */
     public abstract static class Job {
 
+        /**
+         * Priority for jobs that a user is waiting for, e.g. jobs updating the UI.
+         * @see #priority(int)
+         */
+        public static final int PRIORITY_INTERACTIVE = 0;
+
+        /**
+         * The default priority of jobs.
+         * @see #priority(int)
+         */
+        public static final int PRIORITY_DEFAULT = 1;
+
+        /**
+         * Priority for long running or background work that is not time sensitive.
+         * @see #priority(int)
+         */
+        public static final int PRIORITY_BULK = 2;
+
+        @Retention(SOURCE)
+        @IntDef({PRIORITY_INTERACTIVE, PRIORITY_DEFAULT, PRIORITY_BULK})
+        @interface Priority {}
+
         /**
          * Store output of STDOUT to a specific list.
+         * <p>
+         * If the list also implements {@link RawLineCallback}, lines are passed to
+         * {@link RawLineCallback#onLine(byte[], int, int)} as raw bytes instead of being
+         * added as strings. For large outputs, pass a {@link CompactLineList} to reduce memory
+         * usage, or a {@link HeadLineList} or {@link TailLineList} to only keep a part of it.
          * @param stdout the list to store STDOUT. Pass {@code null} to omit all outputs.
          * @return this Job object for chaining of calls.
          */
@@ -561,6 +760,153 @@ public abstract class Shell implements Closeable {
         @NonNull
         public abstract Job to(@Nullable List<String> stdout, @Nullable List<String> stderr);
 
+        /**
+         * Deliver output of STDOUT and STDERR to callbacks as raw bytes.
+         * <p>
+         * Each line is passed to the callback directly from the internal buffer of the shell
+         * as soon as it is read, without being decoded into a {@link String} or copied.
+         * This is the most efficient way to process commands producing huge amounts of output.
+         * Nothing will be stored in the {@link Result} of the job.
+         * <p>
+         * The callbacks run on the thread reading outputs of the shell; do not block
+         * in the callbacks. Calling this method overrides any list set with
+         * {@link #to(List)} or {@link #to(List, List)}, and vice versa.
+         * @param stdout the callback receiving lines of STDOUT. Pass {@code null} to omit STDOUT.
+         * @param stderr the callback receiving lines of STDERR. Pass {@code null} to omit STDERR.
+         * @return this Job object for chaining of calls.
+         */
+        @NonNull
+        public abstract Job toRaw(@Nullable RawLineCallback stdout,
+                                  @Nullable RawLineCallback stderr);
+
+        /**
+         * Stream output of STDOUT to a consumer.
+         * <p>
+         * Same as calling {@code toStream(stdout, null)}.
+         * @param stdout the consumer receiving lines of STDOUT. Pass {@code null} to omit STDOUT.
+         * @return this Job object for chaining of calls.
+         * @see #toStream(LineConsumer, LineConsumer)
+         */
+        @NonNull
+        public Job toStream(@Nullable LineConsumer stdout) {
+            return toStream(stdout, null);
+        }
+
+        /**
+         * Stream output of STDOUT and STDERR to consumers.
+         * <p>
+         * Each line is passed to the consumer on the thread reading outputs of the shell as soon
+         * as it is read. Nothing is buffered between the shell and the consumer, and nothing
+         * will be stored in the {@link Result} of the job. If a consumer blocks, no more output
+         * is read from the shell, and the command will eventually be blocked when the pipe
+         * is full. This allows commands with unbounded output, such as {@code logcat} or
+         * {@code find /}, to be processed with constant memory at the pace of the consumer.
+         * <p>
+         * Calling this method overrides any list set with {@link #to(List)},
+         * {@link #to(List, List)}, or any callback set with
+         * {@link #toRaw(RawLineCallback, RawLineCallback)}, and vice versa.
+         * <p>
+         * If a consumer throws, it receives no more lines of the job, but the rest of the output
+         * is still read and discarded so the shell stays usable. The exception is rethrown by
+         * {@link #exec()}, fails the futures returned by {@link #enqueue()} and
+         * {@link #async()}, and is only logged for {@link #submit(ResultCallback)}.
+         * @param stdout the consumer receiving lines of STDOUT. Pass {@code null} to omit STDOUT.
+         * @param stderr the consumer receiving lines of STDERR. Pass {@code null} to omit STDERR.
+         * @return this Job object for chaining of calls.
+         */
+        @NonNull
+        public abstract Job toStream(@Nullable LineConsumer stdout,
+                                     @Nullable LineConsumer stderr);
+
+        /**
+         * Write output of STDOUT as binary data to a stream.
+         * <p>
+         * The output is passed to the stream as-is while it is being read from the shell,
+         * without being decoded or split into lines. This is useful for commands producing
+         * binary data, for instance {@code cat}-ing a binary file. Output of STDERR is omitted,
+         * and nothing will be stored in the {@link Result} of the job except the return code.
+         * <p>
+         * The stream is written on the thread reading outputs of the shell, and will not be
+         * closed. If writing to the stream fails, the rest of the output is discarded.
+         * Calling this method overrides any output destination set with other methods.
+         * @param stdout the stream receiving STDOUT. Pass {@code null} to omit STDOUT.
+         * @return this Job object for chaining of calls.
+         */
+        @NonNull
+        public abstract Job toBinary(@Nullable OutputStream stdout);
+
+        /**
+         * Write output of STDOUT as binary data to a channel.
+         * <p>
+         * The channel will not be closed.
+         * @param stdout the channel receiving STDOUT. Pass {@code null} to omit STDOUT.
+         * @return this Job object for chaining of calls.
+         * @see #toBinary(OutputStream)
+         */
+        @NonNull
+        public abstract Job toBinary(@Nullable WritableByteChannel stdout);
+
+        /**
+         * Set a time limit of the job.
+         * <p>
+         * If the job does not finish in time, all processes started by the job are killed and
+         * the return code of the job will be {@link Result#JOB_CANCELLED}. The shell stays
+         * usable and continues to run the jobs after it. Setting a time limit also allows the
+         * job to be killed while it is running by cancelling the {@link Future} returned by
+         * {@link #enqueue()} with {@code mayInterruptIfRunning} set to {@code true}.
+         * Jobs without a time limit can only be cancelled before they start.
+         * <p>
+         * To make this possible, the commands of the job run in a subshell in the background.
+         * Changes to the shell environment, such as {@code cd} or setting variables, will not
+         * affect later jobs, and the commands cannot read from STDIN.
+         * Killing the whole process tree requires {@code pgrep}; otherwise, only the subshell
+         * running the commands is killed.
+         * @param timeout the maximum time to wait for the job. Pass 0 to disable the limit.
+         * @param unit the time unit of {@code timeout}.
+         * @return this Job object for chaining of calls.
+         */
+        @NonNull
+        public abstract Job timeout(long timeout, @NonNull TimeUnit unit);
+
+        /**
+         * Set the priority of the job.
+         * <p>
+         * Jobs waiting in the queue of a shell are run in the order of their priorities,
+         * and jobs with the same priority are run in the order of submission.
+         * A job that has been waiting for a long time is treated as having a higher priority,
+         * so jobs with lower priorities are delayed but never starved.
+         * A job that is already running is never interrupted.
+         * The default priority is {@link #PRIORITY_DEFAULT}.
+         * @param priority one of {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_DEFAULT},
+         *                 or {@link #PRIORITY_BULK}.
+         * @return this Job object for chaining of calls.
+         */
+        @NonNull
+        public abstract Job priority(@Priority int priority);
+
+        /**
+         * Serve the result of the job from a cache when possible.
+         * <p>
+         * Jobs running commands with side effects should never be cached.
+         * @param cache the cache to use, or {@code null} to disable caching.
+         * @return this Job object for chaining of calls.
+         * @see Cache
+         */
+        @NonNull
+        public abstract Job cache(@Nullable Cache cache);
+
+        /**
+         * Mark whether the job can safely run again.
+         * <p>
+         * If the shell dies before an idempotent job starts running and the shell is created
+         * with {@link #FLAG_AUTO_RESPAWN}, the job runs in the new shell instead of failing.
+         * A job that has started running is never run again. Jobs are not idempotent by default.
+         * @param idempotent whether running the job more than once has no side effects.
+         * @return this Job object for chaining of calls.
+         */
+        @NonNull
+        public abstract Job idempotent(boolean idempotent);
+
         /**
          * Add a new operation running commands.
          * @param cmds the commands to run.
@@ -584,6 +930,33 @@ public abstract class Shell implements Closeable {
         @NonNull
         public abstract Job add(@NonNull InputStream in);
 
+        /**
+         * Add a new operation serving the content of a file to STDIN.
+         * <p>
+         * This works the same as {@link #add(InputStream)}, but when possible, the file is
+         * transferred directly into STDIN by the kernel without being copied through
+         * buffers in the Java heap. Use this instead of {@link #add(InputStream)} for
+         * large scripts or payloads.
+         * <p>
+         * If the file cannot be opened when the job runs, nothing is served.
+         * @param file the file to serve to STDIN.
+         * @return this Job object for chaining of calls.
+         */
+        @NonNull
+        public abstract Job add(@NonNull File file);
+
+        /**
+         * Add a new operation serving a FileChannel to STDIN.
+         * <p>
+         * The data from the current position to the end of the channel is served.
+         * This works the same as {@link #add(File)}.
+         * @param channel the FileChannel to serve to STDIN.
+         *                The channel will be closed after consumption.
+         * @return this Job object for chaining of calls.
+         */
+        @NonNull
+        public abstract Job add(@NonNull FileChannel channel);
+
         /**
          * Execute the job immediately and returns the result.
          * @return the result of the job.
@@ -619,10 +992,135 @@ public abstract class Shell implements Closeable {
 
         /**
          * Submit the job to an internal queue to run in the background.
+         * <p>
+         * Cancelling the returned {@link Future} prevents the job from running if it has not
+         * started yet. Running jobs can only be cancelled if a time limit is set with
+         * {@link #timeout(long, TimeUnit)}.
          * @return a {@link Future} to get the result of the job later.
          */
         @NonNull
         public abstract Future<Result> enqueue();
+
+        /**
+         * Submit the job to an internal queue to run in the background.
+         * <p>
+         * Same as {@link #enqueue()}, but the returned future can be composed with other
+         * asynchronous operations, such as jobs depending on the result of this job.
+         * The future is completed directly by the thread reading the outputs of the shell.
+         * @return a {@link ShellFuture} of the result of the job.
+         */
+        @NonNull
+        public abstract ShellFuture<Result> async();
+
+        /**
+         * Submit the job to an internal queue to run in the background.
+         * @return a {@link CompletionStage} of the result of the job.
+         * @see #async()
+         */
+        @NonNull
+        @RequiresApi(24)
+        public CompletionStage<Result> toCompletionStage() {
+            return async().toCompletableFuture();
+        }
+    }
+
+    /**
+     * Represents a group of independent jobs that run in a single round trip to the shell.
+     * <p>
+     * The commands of all jobs are written to the shell at once, and each job gets its own
+     * {@link Result} with its own return code. This is much faster than running the jobs one
+     * by one when there are many small jobs, such as testing a large number of files:
+     * <pre>
+     * Shell.Batch batch = shell.newBatch();
+     * for (String path : paths)
+     *     batch.add("[ -e " + ShellUtils.escapedString(path) + " ]");
+     * List&lt;Shell.Result&gt; results = batch.exec();
+     * </pre>
+     * Jobs in the same batch are executed sequentially in the order of addition.
+     */
+    public abstract static class Batch {
+
+        /**
+         * Add a new job running commands.
+         * <p>
+         * Output of STDOUT will be stored in the {@link Result} of the job.
+         * @param cmds the commands to run.
+         * @return this Batch object for chaining of calls.
+         */
+        @NonNull
+        public abstract Batch add(@NonNull String... cmds);
+
+        /**
+         * @return the number of jobs in the batch.
+         */
+        public abstract int size();
+
+        /**
+         * Execute all jobs immediately and returns the results.
+         * @return the results of the jobs, in the order of addition.
+         */
+        @NonNull
+        public abstract List<Result> exec();
+
+        /**
+         * Submit all jobs to an internal queue to run in the background.
+         * @return a {@link Future} to get the results of the jobs later, in the order of addition.
+         */
+        @NonNull
+        public abstract Future<List<Result>> enqueue();
+    }
+
+    /**
+     * A cache of the results of jobs running read-only commands.
+     * <p>
+     * Create an instance with {@link #create(int, long, TimeUnit)}, and enable caching
+     * for a job with {@link Job#cache(Cache)}. Results are keyed by the shell and the text
+     * of the commands, so only jobs running commands added with {@link Job#add(String...)}
+     * and collecting outputs into lists are cached. Only use the cache for commands that
+     * have no side effects, such as {@code getprop}, {@code id}, or {@code stat}.
+     * <p>
+     * When the same commands are requested again before the result expires, the cached
+     * outputs are added to the output lists of the job without running anything in the
+     * shell. If the same commands are requested while they are already running, the job
+     * waits for the running one instead of running them again. Jobs that are not executed
+     * or cancelled are not cached.
+     */
+    public abstract static class Cache {
+
+        /**
+         * Create a new cache.
+         * @param maxEntries the maximum number of results kept. When full, the least
+         *                   recently used result is removed.
+         * @param ttl the time a result is valid after the job finished.
+         * @param unit the time unit of {@code ttl}.
+         * @return the new cache.
+         */
+        @NonNull
+        public static Cache create(int maxEntries, long ttl, @NonNull TimeUnit unit) {
+            return new ResultCache(maxEntries, unit.toNanos(ttl));
+        }
+
+        /**
+         * Remove the cached results of the commands.
+         * @param shell the shell running the commands.
+         * @param cmds the commands, the same as passed to {@link Job#add(String...)}.
+         */
+        public abstract void invalidate(@NonNull Shell shell, @NonNull String... cmds);
+
+        /**
+         * Remove all cached results of the shell.
+         */
+        public abstract void invalidate(@NonNull Shell shell);
+
+        /**
+         * Remove all cached results.
+         */
+        public abstract void clear();
+
+        /**
+         * @return the number of cached results.
+         */
+        public abstract int size();
     }
 
     /**
@@ -648,6 +1146,51 @@ public abstract class Shell implements Closeable {
         public boolean onInit(@NonNull Context context, @NonNull Shell shell) { return true; }
     }
 
+    /**
+     * The listener receiving statistics of shells.
+     * <p>
+     * Register an instance with {@link Builder#setMetrics(Metrics)}, and override the
+     * callbacks of the statistics you are interested in. All times are in nanoseconds.
+     * The callbacks are invoked synchronously on the threads running the shell,
+     * so implementations should be thread safe and return as soon as possible.
+     * No statistics are collected when no listener is set.
+     */
+    public static class Metrics {
+        /**
+         * Called when a new shell is constructed.
+         * @param shell the newly constructed shell.
+         * @param spawnTime the time used to start the process, or -1 if the process was
+         *                  not started by the builder.
+         * @param checkTime the time used to verify the shell and its root status.
+         */
+        public void onShellCreated(@NonNull Shell shell, long spawnTime, long checkTime) {}
+
+        /**
+         * Called when a job is about to run.
+         * @param shell the shell running the job.
+         * @param queueDepth the number of tasks still waiting in the queue of the shell.
+         * @param waitTime the time the job waited in the queue.
+         */
+        public void onJobStarted(@NonNull Shell shell, int queueDepth, long waitTime) {}
+
+        /**
+         * Called when a job is finished, before its result is delivered.
+         * <p>
+         * The byte counts include the internal commands used to separate jobs.
+         * @param shell the shell running the job.
+         * @param execTime the time the shell spent on the job.
+         * @param bytesWritten the number of bytes written to STDIN.
+         * @param bytesOut the number of bytes read from STDOUT.
+         * @param bytesErr the number of bytes read from STDERR.
+         * @param linesOut the number of lines read from STDOUT. Always 0 for binary outputs.
+         * @param linesErr the number of lines read from STDERR.
+         * @param code the return code of the job.
+         */
+        public void onJobFinished(@NonNull Shell shell, long execTime, long bytesWritten,
+                                  long bytesOut, long bytesErr, int linesOut, int linesErr,
+                                  int code) {}
+    }
+
     /* **********
      * Interfaces
      * **********/
@@ -684,6 +1227,40 @@ public abstract class Shell implements Closeable {
         void onShell(@NonNull Shell shell);
     }
 
+    /**
+     * The callback to receive raw lines of output in
+     * {@link Job#toRaw(RawLineCallback, RawLineCallback)}.
+     */
+    public interface RawLineCallback {
+        /**
+         * Called for every line of output, excluding the trailing new line character.
+         * <p>
+         * The data is NOT copied out of the internal buffer of the shell, so it is only valid
+         * during this call. Do not store or modify {@code buf}; copy the data if it is
+         * needed afterwards.
+         * @param buf the buffer containing the line encoded in UTF-8.
+         * @param off the offset of the line in {@code buf}.
+         * @param len the length of the line in bytes.
+         */
+        void onLine(@NonNull byte[] buf, int off, int len);
+    }
+
+    /**
+     * The consumer to receive lines of output in
+     * {@link Job#toStream(LineConsumer, LineConsumer)}.
+     */
+    public interface LineConsumer {
+        /**
+         * Called for every line of output, excluding the trailing new line character.
+         * <p>
+         * The shell is blocked from producing more output of the stream until this
+         * method returns. Exceptions thrown here are reported to the caller of the job,
+         * see {@link Job#toStream(LineConsumer, LineConsumer)}.
+         * @param line the line of output.
+         */
+        void onLine(@NonNull String line);
+    }
+
     /**
      * The callback to receive a result in {@link Job#submit(Shell.ResultCallback)}.
      */
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.topjohnwu.superuser.internal.Utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread pool with named threads and statistics of its saturation.
+ * <p>
+ * Use {@link #newIoExecutor(String, int)} for tasks that block on I/O, such as the tasks
+ * reading and writing the streams of shells, and {@link #newCallbackExecutor(String, int)}
+ * for short tasks such as callbacks.
+ *
+ * @see Shell#EXECUTOR
+ * @see Shell#CALLBACK_EXECUTOR
+ */
+public final class ShellExecutor implements Executor {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String name;
+    private final ThreadPoolExecutor pool;
+    private final AtomicInteger threadId = new AtomicInteger();
+    private final AtomicInteger overflowId = new AtomicInteger();
+    private volatile ThreadPoolExecutor overflowPool;
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    private ShellExecutor(String name, int threads, boolean queued) {
+        this.name = name;
+        ThreadFactory factory = r -> new Thread(r, name + "-" + threadId.incrementAndGet());
+        if (queued) {
+            pool = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+            pool.allowCoreThreadTimeOut(true);
+        } else {
+            pool = new ThreadPoolExecutor(0, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), factory,
+                    (r, e) -> overflow(r));
+        }
+    }
+
+    /**
+     * Create an executor for tasks that block on I/O.
+     * <p>
+     * Tasks never wait in a queue, as a task blocking on I/O could be waiting for another
+     * task behind it. Because of that, the executor is unbounded: {@code maxThreads} only
+     * limits the number of threads kept for reuse. When all of them are busy, the task runs
+     * in a new thread of a secondary pool instead, which is counted in
+     * {@link #getOverflowCount()}. Idle threads of both pools are reused,
+     * and stopped after 30 seconds.
+     * @param name the prefix of the names of the threads.
+     * @param maxThreads the maximum number of threads in the main pool.
+     * @return the new executor.
+     */
+    @NonNull
+    public static ShellExecutor newIoExecutor(@NonNull String name, int maxThreads) {
+        return new ShellExecutor(name, Math.max(maxThreads, 1), false);
+    }
+
+    /**
+     * Create an executor for short tasks that should not block.
+     * <p>
+     * When all {@code threads} threads are busy, tasks wait in a queue.
+     * @param name the prefix of the names of the threads.
+     * @param threads the maximum number of threads.
+     * @return the new executor.
+     */
+    @NonNull
+    public static ShellExecutor newCallbackExecutor(@NonNull String name, int threads) {
+        return new ShellExecutor(name, Math.max(threads, 1), true);
+    }
+
+    /**
+     * Create an executor that runs each task in a new virtual thread.
+     * <p>
+     * Virtual threads are only supported on Java 21 or higher, and are not available on
+     * Android. Every {@code Shell} blocks multiple threads on I/O, so virtual threads can
+     * make a large number of shells cheaper on runtimes that support them.
+     * @param name the prefix of the names of the threads.
+     * @return the new executor, or {@code null} if virtual threads are not supported.
+     */
+    @Nullable
+    public static Executor newVirtualThreadExecutor(@NonNull String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> clz = Class.forName("java.lang.Thread$Builder");
+            builder = clz.getMethod("name", String.class, long.class)
+                    .invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) clz.getMethod("factory").invoke(builder);
+            return (Executor) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void overflow(Runnable r) {
+        overflowCount.incrementAndGet();
+        Utils.log(name, "pool saturated, run task in the overflow pool");
+        ThreadPoolExecutor p = overflowPool;
+        if (p == null) {
+            synchronized (this) {
+                p = overflowPool;
+                if (p == null) {
+                    p = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                            t -> new Thread(t, name + "-overflow-" + overflowId.incrementAndGet()));
+                    overflowPool = p;
+                }
+            }
+        }
+        p.execute(r);
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        pool.execute(command);
+    }
+
+    /**
+     * @return the number of threads in the pool.
+     */
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    /**
+     * @return the approximate number of threads running tasks in the pool.
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * @return the maximum number of threads in the pool.
+     */
+    public int getMaxPoolSize() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * @return the largest number of threads that have ever been in the pool.
+     */
+    public int getLargestPoolSize() {
+        return pool.getLargestPoolSize();
+    }
+
+    /**
+     * @return the number of tasks waiting in the queue.
+     */
+    public int getQueueSize() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return the number of tasks that ran in the overflow pool because the pool was full.
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * @return the approximate number of tasks that have completed in the pool.
+     */
+    public long getCompletedTaskCount() {
+        return pool.getCompletedTaskCount();
+    }
+}
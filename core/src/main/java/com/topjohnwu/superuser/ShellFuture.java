@@ -0,0 +1,336 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.topjohnwu.superuser.internal.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Future} that can be composed with other asynchronous operations.
+ * <p>
+ * Get an instance of the result of a job with {@link Shell.Job#async()}. Continuations
+ * registered with {@link #thenApply(Function)}, {@link #thenCompose(Function)}, and
+ * {@link #whenComplete(Listener)} run directly on the thread completing the future,
+ * which is the thread reading the outputs of the shell for jobs, so multi-step workflows
+ * run without parking threads or switching executors.
+ * Continuations should therefore return as soon as possible, and never wait for other
+ * jobs of the same shell; use {@link #whenComplete(Executor, Listener)} to run them on
+ * another executor instead.
+ * <p>
+ * Similar to {@code CompletableFuture}, which is only available on Android 7.0 and higher.
+ * Use {@link #toCompletableFuture()} to get one on those versions.
+ * @param <T> the type of the result.
+ */
+public class ShellFuture<T> implements Future<T> {
+
+    /**
+     * A function transforming the result of a future.
+     */
+    public interface Function<T, R> {
+        R apply(T t) throws Exception;
+    }
+
+    /**
+     * A callback receiving the outcome of a future.
+     */
+    public interface Listener<T> {
+        /**
+         * @param value the result, or {@code null} if the future failed.
+         * @param error the exception, or {@code null} if the future succeeded.
+         *              {@link CancellationException} if the future was cancelled.
+         */
+        void onComplete(@Nullable T value, @Nullable Throwable error);
+    }
+
+    private boolean done = false;
+    @Nullable private T value;
+    @Nullable private Throwable error;
+    @Nullable private List<Runnable> listeners = new ArrayList<>();
+
+    /**
+     * @return a future already completed with {@code value}.
+     */
+    @NonNull
+    public static <T> ShellFuture<T> completed(@Nullable T value) {
+        ShellFuture<T> f = new ShellFuture<>();
+        f.complete(value);
+        return f;
+    }
+
+    /**
+     * Wait for all futures to complete.
+     * @return a future of the results in the same order as the futures.
+     *         If any of the futures fails, the returned future fails with the same exception.
+     */
+    @NonNull
+    public static <T> ShellFuture<List<T>> allOf(@NonNull List<? extends ShellFuture<? extends T>> futures) {
+        ShellFuture<List<T>> all = new ShellFuture<>();
+        int size = futures.size();
+        if (size == 0) {
+            all.complete(Collections.emptyList());
+            return all;
+        }
+        Object[] values = new Object[size];
+        AtomicInteger remaining = new AtomicInteger(size);
+        for (int i = 0; i < size; ++i) {
+            int idx = i;
+            futures.get(i).whenComplete((v, e) -> {
+                if (e != null) {
+                    all.completeExceptionally(e);
+                } else {
+                    values[idx] = v;
+                    if (remaining.decrementAndGet() == 0) {
+                        @SuppressWarnings("unchecked")
+                        List<T> list = (List<T>) Arrays.asList(values);
+                        all.complete(list);
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * Submit all jobs to run in the background, and wait for all of them.
+     * <p>
+     * Jobs of the main shell are spread in the shell pool if enabled.
+     * @return a future of the results in the same order as the jobs.
+     * @see #allOf(List)
+     */
+    @NonNull
+    public static ShellFuture<List<Shell.Result>> allOf(@NonNull Shell.Job... jobs) {
+        List<ShellFuture<Shell.Result>> futures = new ArrayList<>(jobs.length);
+        for (Shell.Job job : jobs)
+            futures.add(job.async());
+        return allOf(futures);
+    }
+
+    /**
+     * Complete the future with a value if it is not completed yet.
+     * @return true if the future is completed by this call.
+     */
+    public boolean complete(@Nullable T v) {
+        return finish(v, null);
+    }
+
+    /**
+     * Complete the future with an exception if it is not completed yet.
+     * @return true if the future is completed by this call.
+     */
+    public boolean completeExceptionally(@NonNull Throwable e) {
+        return finish(null, e);
+    }
+
+    private boolean finish(@Nullable T v, @Nullable Throwable e) {
+        List<Runnable> list;
+        synchronized (this) {
+            if (done)
+                return false;
+            done = true;
+            value = v;
+            error = e;
+            list = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        for (Runnable r : list)
+            run(r);
+        return true;
+    }
+
+    /**
+     * Run the action when the future completes, or immediately if already completed.
+     */
+    private void then(Runnable r) {
+        synchronized (this) {
+            if (!done) {
+                listeners.add(r);
+                return;
+            }
+        }
+        run(r);
+    }
+
+    private static void run(Runnable r) {
+        // The completing thread could be running the tasks of a shell, never let it die
+        try {
+            r.run();
+        } catch (Throwable t) {
+            Utils.err(t);
+        }
+    }
+
+    /**
+     * Transform the result of this future when it succeeds.
+     * @param fn the function to transform the result. Exceptions thrown by the function
+     *           fail the returned future.
+     * @return a new future of the transformed result.
+     */
+    @NonNull
+    public <R> ShellFuture<R> thenApply(@NonNull Function<? super T, ? extends R> fn) {
+        ShellFuture<R> next = new ShellFuture<>();
+        then(() -> {
+            if (error != null) {
+                next.completeExceptionally(error);
+                return;
+            }
+            try {
+                next.complete(fn.apply(value));
+            } catch (Throwable t) {
+                next.completeExceptionally(t);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Start another asynchronous operation with the result of this future when it succeeds,
+     * such as running another job depending on the result.
+     * @param fn the function starting the next operation. Exceptions thrown by the function,
+     *           or returning {@code null}, fail the returned future.
+     * @return a new future completed with the result of the next operation.
+     */
+    @NonNull
+    public <R> ShellFuture<R> thenCompose(
+            @NonNull Function<? super T, ? extends ShellFuture<R>> fn) {
+        ShellFuture<R> next = new ShellFuture<>();
+        then(() -> {
+            if (error != null) {
+                next.completeExceptionally(error);
+                return;
+            }
+            ShellFuture<R> f;
+            try {
+                f = fn.apply(value);
+            } catch (Throwable t) {
+                next.completeExceptionally(t);
+                return;
+            }
+            if (f == null) {
+                next.completeExceptionally(
+                        new NullPointerException("thenCompose function returned null"));
+                return;
+            }
+            f.whenComplete((v, e) -> {
+                if (e != null)
+                    next.completeExceptionally(e);
+                else
+                    next.complete(v);
+            });
+        });
+        return next;
+    }
+
+    /**
+     * Register a listener called when the future completes, on the thread completing
+     * the future. If the future is already completed, the listener is called immediately.
+     * Exceptions thrown by the listener are logged and ignored.
+     * @return this future.
+     */
+    @NonNull
+    public ShellFuture<T> whenComplete(@NonNull Listener<? super T> listener) {
+        then(() -> listener.onComplete(value, error));
+        return this;
+    }
+
+    /**
+     * Register a listener called by the executor when the future completes.
+     * @return this future.
+     */
+    @NonNull
+    public ShellFuture<T> whenComplete(@NonNull Executor executor,
+                                       @NonNull Listener<? super T> listener) {
+        then(() -> executor.execute(() -> listener.onComplete(value, error)));
+        return this;
+    }
+
+    /**
+     * @return a {@link CompletableFuture} completed with the outcome of this future.
+     */
+    @NonNull
+    @RequiresApi(24)
+    public CompletableFuture<T> toCompletableFuture() {
+        CompletableFuture<T> f = new CompletableFuture<>();
+        whenComplete((v, e) -> {
+            if (e != null)
+                f.completeExceptionally(e);
+            else
+                f.complete(v);
+        });
+        return f;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return completeExceptionally(new CancellationException());
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return error instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    private T report() throws ExecutionException {
+        if (error instanceof CancellationException)
+            throw (CancellationException) error;
+        if (error != null)
+            throw new ExecutionException(error);
+        return value;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!done)
+            wait();
+        return report();
+    }
+
+    @Override
+    public synchronized T get(long timeout, @NonNull TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        while (!done) {
+            if (nanos <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            nanos = deadline - System.nanoTime();
+        }
+        return report();
+    }
+}
@@ -23,7 +23,6 @@ import androidx.annotation.NonNull;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -72,7 +71,7 @@ public final class ShellUtils {
      */
     @NonNull
     public static String fastCmd(Shell shell, String... cmds) {
-        List<String> out = shell.newJob().add(cmds).to(new ArrayList<>(), null).exec().getOut();
+        List<String> out = shell.newJob().add(cmds).to(new TailLineList(1), null).exec().getOut();
         return isValidOutput(out) ? out.get(out.size() - 1) : "";
     }
 
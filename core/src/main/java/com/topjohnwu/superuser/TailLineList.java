@@ -0,0 +1,232 @@
+/*
+ * Copyright 2023 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.topjohnwu.superuser;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import androidx.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A {@link List} that only keeps the last lines added to it.
+ * <p>
+ * Lines are stored as UTF-8 bytes in ring buffers. Once the limits are reached, the oldest
+ * lines are dropped to make room for new ones, so the memory used stays constant no matter
+ * how many lines are added. Lines are only decoded into strings when accessed with
+ * {@link #get(int)}.
+ * <p>
+ * Pass an instance to {@link Shell.Job#to(List)} or {@link Shell.Job#to(List, List)} to
+ * only keep the end of the outputs of a job. Outputs are copied directly from the stream
+ * of the shell, so lines that are dropped never allocate any memory.
+ * New lines can only be appended to the end of the list, and the list is not thread safe.
+ */
+public final class TailLineList extends AbstractList<String>
+        implements RandomAccess, Shell.RawLineCallback {
+
+    private final int maxLines;
+    private final int maxBytes;
+
+    // Ring buffer of the data of all lines
+    private byte[] data;
+    private int used = 0;
+
+    // Ring buffer of the lines, pointing into data
+    private int[] starts;
+    private int[] lengths;
+    private int head = 0;
+    private int size = 0;
+
+    private long dropped = 0;
+    private byte[] scratch;
+
+    /**
+     * @param maxLines the maximum number of lines to keep.
+     */
+    public TailLineList(int maxLines) {
+        this(maxLines, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxLines the maximum number of lines to keep.
+     * @param maxBytes the maximum total length of the lines to keep in bytes, excluding
+     *                 new line characters. If a single line is longer than this limit, only
+     *                 the end of the line is kept.
+     */
+    public TailLineList(int maxLines, int maxBytes) {
+        if (maxLines <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Limits must be positive");
+        this.maxLines = maxLines;
+        this.maxBytes = maxBytes;
+        data = new byte[Math.min(maxBytes, 1024)];
+        starts = new int[Math.min(maxLines, 16)];
+        lengths = new int[starts.length];
+    }
+
+    /**
+     * Append a line encoded in UTF-8 to the list, dropping the oldest lines if needed.
+     */
+    @Override
+    public void onLine(@NonNull byte[] buf, int off, int len) {
+        if (len > maxBytes) {
+            off += len - maxBytes;
+            len = maxBytes;
+        }
+        while (size != 0 && (size == maxLines || used + len > maxBytes)) {
+            used -= lengths[head];
+            head = (head + 1) % starts.length;
+            --size;
+            ++dropped;
+        }
+        if (size == 0) {
+            head = 0;
+            used = 0;
+        }
+        if (used + len > data.length || size == starts.length)
+            grow(used + len);
+
+        int start = size == 0 ? 0 : (end(size - 1)) % data.length;
+        int first = Math.min(len, data.length - start);
+        System.arraycopy(buf, off, data, start, first);
+        System.arraycopy(buf, off + first, data, 0, len - first);
+        int idx = (head + size) % starts.length;
+        starts[idx] = start;
+        lengths[idx] = len;
+        used += len;
+        ++size;
+        ++modCount;
+    }
+
+    private int end(int i) {
+        int idx = (head + i) % starts.length;
+        return starts[idx] + lengths[idx];
+    }
+
+    /**
+     * Grow the ring buffers within the limits, and move all lines to the start of the buffers.
+     */
+    private void grow(int bytes) {
+        int cap = data.length;
+        if (bytes > cap)
+            cap = (int) Math.min(Math.max(cap * 2L, bytes), maxBytes);
+        int lines = starts.length;
+        if (size == lines)
+            lines = (int) Math.min(lines * 2L, maxLines);
+        byte[] d = new byte[cap];
+        int[] s = new int[lines];
+        int[] l = new int[lines];
+        int pos = 0;
+        for (int i = 0; i < size; ++i) {
+            int idx = (head + i) % starts.length;
+            copy(starts[idx], lengths[idx], d, pos);
+            s[i] = pos;
+            l[i] = lengths[idx];
+            pos += l[i];
+        }
+        data = d;
+        starts = s;
+        lengths = l;
+        head = 0;
+    }
+
+    private void copy(int start, int len, byte[] dest, int pos) {
+        int first = Math.min(len, data.length - start);
+        System.arraycopy(data, start, dest, pos, first);
+        System.arraycopy(data, 0, dest, pos + first, len - first);
+    }
+
+    /**
+     * Decode the line at the specified position. A new {@code String} is created every time.
+     * @see List#get(int)
+     */
+    @Override
+    public String get(int i) {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+        int idx = (head + i) % starts.length;
+        int start = starts[idx];
+        int len = lengths[idx];
+        if (start + len <= data.length)
+            return new String(data, start, len, UTF_8);
+        byte[] b = new byte[len];
+        copy(start, len, b, 0);
+        return new String(b, UTF_8);
+    }
+
+    /**
+     * Append a line to the end of the list, dropping the oldest lines if needed.
+     * @param i must be the same as {@link #size()}.
+     * @throws UnsupportedOperationException if {@code i} is not the end of the list.
+     * @see List#add(int, Object)
+     */
+    @Override
+    public void add(int i, String s) {
+        if (i != size)
+            throw new UnsupportedOperationException();
+        byte[] b = s.getBytes(UTF_8);
+        onLine(b, 0, b.length);
+    }
+
+    /**
+     * @see List#size()
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @see List#clear()
+     */
+    @Override
+    public void clear() {
+        size = 0;
+        used = 0;
+        head = 0;
+        dropped = 0;
+        ++modCount;
+    }
+
+    /**
+     * Go through all lines without decoding them.
+     * @param action called for each line in order. The data is only valid during the call.
+     */
+    public void forEachRaw(@NonNull Shell.RawLineCallback action) {
+        for (int i = 0; i < size; ++i) {
+            int idx = (head + i) % starts.length;
+            int start = starts[idx];
+            int len = lengths[idx];
+            if (start + len <= data.length) {
+                action.onLine(data, start, len);
+            } else {
+                if (scratch == null || scratch.length < len)
+                    scratch = new byte[len];
+                copy(start, len, scratch, 0);
+                action.onLine(scratch, 0, len);
+            }
+        }
+    }
+
+    /**
+     * @return the number of lines that were dropped from the start of the list.
+     */
+    public long getDroppedLines() {
+        return dropped;
+    }
+}
@@ -16,14 +16,18 @@
 
 package com.topjohnwu.superuser.internal;
 
+import static com.topjohnwu.superuser.Shell.FLAG_AUTO_RESPAWN;
 import static com.topjohnwu.superuser.Shell.FLAG_MOUNT_MASTER;
 import static com.topjohnwu.superuser.Shell.FLAG_NON_ROOT_SHELL;
+import static com.topjohnwu.superuser.Shell.FLAG_PARALLEL_PROBE;
 import static com.topjohnwu.superuser.Shell.FLAG_REDIRECT_STDERR;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.text.TextUtils;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 
 import com.topjohnwu.superuser.NoShellException;
@@ -31,12 +35,27 @@ import com.topjohnwu.superuser.Shell;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 
 @RestrictTo(RestrictTo.Scope.LIBRARY)
 public final class BuilderImpl extends Shell.Builder {
     private static final String TAG = "BUILDER";
+    private static final String PREFS_NAME = "libsu";
+    private static final String KEY_LAST_COMMAND = "last_shell_command";
+
+    private static final String[] SU_MOUNT_MASTER = { "su", "--mount-master" };
+    private static final String[] SU = { "su" };
+    private static final String[] SH = { "sh" };
 
     long timeout = 20;
+    int poolMin = 1;
+    int poolMax = 1;
+    long poolKeepAlive = 30;
+    @Nullable Shell.Metrics metrics;
     private int flags = 0;
     private Shell.Initializer[] initializers;
     private String[] command;
@@ -66,6 +85,32 @@ public final class BuilderImpl extends Shell.Builder {
         return this;
     }
 
+    @NonNull
+    @Override
+    public Shell.Builder setPoolSize(int min, int max) {
+        poolMin = Math.max(min, 1);
+        poolMax = Math.max(max, poolMin);
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Builder setPoolKeepAliveTime(long seconds) {
+        poolKeepAlive = seconds;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Builder setMetrics(@Nullable Shell.Metrics m) {
+        metrics = m;
+        return this;
+    }
+
+    boolean isPoolEnabled() {
+        return poolMax > 1;
+    }
+
     public void setInitializersImpl(Class<? extends Shell.Initializer>[] clz) {
         initializers = new Shell.Initializer[clz.length];
         for (int i = 0; i < clz.length; ++i) {
@@ -79,44 +124,157 @@ public final class BuilderImpl extends Shell.Builder {
         }
     }
 
-    private ShellImpl start() {
-        ShellImpl shell = null;
+    private ShellImpl start(boolean main) {
+        ArrayList<String[]> candidates = new ArrayList<>(3);
+        if (!hasFlags(FLAG_NON_ROOT_SHELL)) {
+            if (hasFlags(FLAG_MOUNT_MASTER))
+                candidates.add(SU_MOUNT_MASTER);
+            candidates.add(SU);
+            // Try the root command that worked last time first
+            String last = getLastCommand();
+            for (int i = 1; i < candidates.size(); ++i) {
+                if (TextUtils.join(" ", candidates.get(i)).equals(last))
+                    candidates.add(0, candidates.remove(i));
+            }
+        }
+        int roots = candidates.size();
+        candidates.add(SH);
 
-        // Root mount master
-        if (!hasFlags(FLAG_NON_ROOT_SHELL) && hasFlags(FLAG_MOUNT_MASTER)) {
+        ShellImpl shell = hasFlags(FLAG_PARALLEL_PROBE) ?
+                race(candidates, roots) : probe(candidates, roots);
+
+        if (shell.command != SH && shell.isRoot()) {
+            setLastCommand(shell.command);
+        } else if (roots > 0) {
+            Utils.setConfirmedRootState(false);
+        }
+        return init(shell, main);
+    }
+
+    /**
+     * Try the candidates one by one. The first {@code roots} candidates are only
+     * accepted if they are root shells.
+     */
+    private ShellImpl probe(List<String[]> candidates, int roots) {
+        for (int i = 0; i < roots; ++i) {
             try {
-                shell = exec("su", "--mount-master");
-                if (!shell.isRoot())
-                    shell = null;
+                ShellImpl shell = exec(candidates.get(i));
+                if (shell.isRoot())
+                    return shell;
+                shell.close();
             } catch (NoShellException ignore) {}
         }
+        return exec(candidates.get(roots));
+    }
 
-        // Normal root shell
-        if (shell == null && !hasFlags(FLAG_NON_ROOT_SHELL)) {
-            try {
-                shell = exec("su");
-                if (!shell.isRoot()) {
-                    shell = null;
+    /**
+     * Start all candidates in parallel. The first root shell wins, and the non-root
+     * shell is only used if all root candidates failed.
+     */
+    private ShellImpl race(List<String[]> candidates, int roots) {
+        ExecutorCompletionService<ShellImpl> service =
+                new ExecutorCompletionService<>(Shell.EXECUTOR);
+        List<Future<ShellImpl>> futures = new ArrayList<>(candidates.size());
+        for (String[] cmd : candidates) {
+            futures.add(service.submit(() -> exec(cmd)));
+        }
+
+        ShellImpl shell = null;
+        ShellImpl fallback = null;
+        NoShellException error = null;
+        int pending = futures.size();
+        int rootPending = roots;
+        try {
+            while (pending > 0 && shell == null) {
+                Future<ShellImpl> f = service.take();
+                --pending;
+                boolean isRoot = futures.indexOf(f) < roots;
+                if (isRoot)
+                    --rootPending;
+                ShellImpl s;
+                try {
+                    s = f.get();
+                } catch (ExecutionException e) {
+                    if (!isRoot && e.getCause() instanceof NoShellException)
+                        error = (NoShellException) e.getCause();
+                    s = null;
                 }
-            } catch (NoShellException ignore) {}
+                if (s == null)
+                    continue;
+                if (isRoot && s.isRoot()) {
+                    shell = s;
+                } else if (!isRoot) {
+                    fallback = s;
+                } else {
+                    s.close();
+                }
+                if (shell == null && rootPending == 0 && fallback != null) {
+                    shell = fallback;
+                    fallback = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            Utils.ex(e);
         }
 
-        // Try normal non-root shell
-        if (shell == null) {
-            if (!hasFlags(FLAG_NON_ROOT_SHELL)) {
-                Utils.setConfirmedRootState(false);
+        // Close all the losers once they are started
+        final ShellImpl winner = shell;
+        for (Future<ShellImpl> f : futures) {
+            Runnable close = () -> {
+                try {
+                    ShellImpl s = f.get();
+                    if (s != winner)
+                        s.close();
+                } catch (ExecutionException | InterruptedException ignored) {}
+            };
+            if (f.isDone()) {
+                close.run();
+            } else {
+                Shell.EXECUTOR.execute(close);
             }
-            shell = exec("sh");
         }
 
+        if (shell == null)
+            throw error != null ? error : new NoShellException("Unable to create a shell!");
         return shell;
     }
 
+    @Nullable
+    private static SharedPreferences getPrefs() {
+        try {
+            return Utils.getDeContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        } catch (RuntimeException e) {
+            // No context available
+            Utils.ex(e);
+            return null;
+        }
+    }
+
+    @Nullable
+    private static String getLastCommand() {
+        SharedPreferences prefs = getPrefs();
+        return prefs == null ? null : prefs.getString(KEY_LAST_COMMAND, null);
+    }
+
+    private static void setLastCommand(String[] command) {
+        SharedPreferences prefs = getPrefs();
+        if (prefs == null)
+            return;
+        String cmd = TextUtils.join(" ", command);
+        if (!cmd.equals(prefs.getString(KEY_LAST_COMMAND, null)))
+            prefs.edit().putString(KEY_LAST_COMMAND, cmd).apply();
+    }
+
     private ShellImpl exec(String... commands) {
         try {
             Utils.log(TAG, "exec " + TextUtils.join(" ", commands));
+            long start = System.nanoTime();
             Process process = Runtime.getRuntime().exec(commands);
-            return build(process);
+            long spawnTime = System.nanoTime() - start;
+            ShellImpl shell = newShell(process);
+            shell.command = commands;
+            shell.spawnTime = spawnTime;
+            return shell;
         } catch (IOException e) {
             Utils.ex(e);
             throw new NoShellException("Unable to create a shell!", e);
@@ -126,36 +284,69 @@ public final class BuilderImpl extends Shell.Builder {
     @NonNull
     @Override
     public ShellImpl build(Process process) {
-        ShellImpl shell;
+        return build(process, true);
+    }
+
+    private ShellImpl build(Process process, boolean main) {
+        return init(newShell(process), main);
+    }
+
+    private ShellImpl newShell(Process process) {
         try {
-            shell = new ShellImpl(this, process);
+            return new ShellImpl(this, process);
         } catch (IOException e) {
             Utils.ex(e);
             throw new NoShellException("Unable to create a shell!", e);
         }
+    }
+
+    private ShellImpl init(ShellImpl shell, boolean main) {
         if (hasFlags(FLAG_REDIRECT_STDERR)) {
             Shell.enableLegacyStderrRedirection = true;
         }
-        MainShell.setCached(shell);
+        // Only shells started from commands can be started again in the same way
+        boolean respawn = hasFlags(FLAG_AUTO_RESPAWN) && shell.command != null;
+        if (respawn)
+            shell.respawnBuilder = this;
+        if (main)
+            MainShell.setCached(shell);
         if (initializers != null) {
             Context ctx = Utils.getContext();
             for (Shell.Initializer init : initializers) {
                 if (init != null && !init.onInit(ctx, shell)) {
-                    MainShell.setCached(null);
+                    if (main)
+                        MainShell.setCached(null);
+                    else
+                        shell.close();
                     throw new NoShellException("Unable to init shell");
                 }
             }
         }
+        if (respawn)
+            ShellWatchdog.watch(shell);
+        if (metrics != null)
+            metrics.onShellCreated(shell, shell.spawnTime, shell.checkTime);
         return shell;
     }
 
     @NonNull
     @Override
     public ShellImpl build() {
+        return build(true);
+    }
+
+    /**
+     * Start a shell replacing a dead shell started with the same commands.
+     */
+    ShellImpl respawn(String[] commands) {
+        return init(exec(commands), false);
+    }
+
+    ShellImpl build(boolean main) {
         if (command != null) {
-            return exec(command);
+            return init(exec(command), main);
         } else {
-            return start();
+            return start(main);
         }
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+class ChannelSource implements ShellInputSource {
+
+    private final File file;
+    private FileChannel channel;
+
+    ChannelSource(File file) {
+        this.file = file;
+    }
+
+    ChannelSource(FileChannel channel) {
+        this.file = null;
+        this.channel = channel;
+    }
+
+    @Override
+    public void serve(OutputStream out) throws IOException {
+        if (channel == null) {
+            try {
+                channel = new FileInputStream(file).getChannel();
+            } catch (FileNotFoundException e) {
+                // Do not break the shell because of a bad input
+                Utils.err(TAG, e);
+                out.write('\n');
+                return;
+            }
+        }
+        FileChannel sink = Utils.unwrapChannel(out);
+        if (sink != null) {
+            // Let the kernel copy the data into the pipe
+            out.flush();
+            long start = channel.position();
+            long pos = start;
+            long end = channel.size();
+            while (pos < end) {
+                long n = channel.transferTo(pos, end - pos, sink);
+                if (n <= 0)
+                    break;
+                pos += n;
+            }
+            channel.position(pos);
+            if (out instanceof JobRunner.CountingOutputStream)
+                ((JobRunner.CountingOutputStream) out).count += pos - start;
+        }
+        // Copy anything not transferred directly
+        Utils.pump(Channels.newInputStream(channel), out);
+        close();
+        out.write('\n');
+        Utils.log(TAG, file == null ? "<FileChannel>" : "<File>");
+    }
+
+    @Override
+    public long length() {
+        try {
+            if (channel != null)
+                return channel.size() - channel.position() + 1;
+            return file.length() + 1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            // Reopen the file if the job runs again
+            if (file != null)
+                channel = null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+class CommandSource implements ShellInputSource {
+
+    private final String[] cmd;
+    CommandSource(String[] cmd) { this.cmd = cmd; }
+
+    @Override
+    public void serve(OutputStream out) throws IOException {
+        for (String command : cmd) {
+            out.write(command.getBytes(UTF_8));
+            out.write('\n');
+            Utils.log(TAG, command);
+        }
+    }
+
+    void appendTo(StringBuilder sb) {
+        append(sb, cmd);
+    }
+
+    static void append(StringBuilder sb, String[] cmds) {
+        for (String command : cmds) {
+            sb.append(command).append('\n');
+        }
+    }
+
+    @Override
+    public long length() {
+        long len = 0;
+        for (String command : cmd) {
+            // A UTF-16 code unit takes at most 3 bytes in UTF-8
+            len += command.length() * 3L + 1;
+        }
+        return len;
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import androidx.annotation.NonNull;
+
+import com.topjohnwu.superuser.Shell;
+import com.topjohnwu.superuser.ShellFuture;
+
+class JobFuture extends ShellFuture<Shell.Result> implements Shell.ResultCallback {
+
+    private final JobTask job;
+
+    JobFuture(JobTask job) {
+        this.job = job;
+    }
+
+    @Override
+    public void onResult(@NonNull Shell.Result out) {
+        Throwable t = out instanceof ResultImpl ? ((ResultImpl) out).error : null;
+        if (t != null)
+            completeExceptionally(t);
+        else
+            complete(out);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone() || !job.cancel(mayInterruptIfRunning))
+            return false;
+        return super.cancel(mayInterruptIfRunning);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import androidx.annotation.NonNull;
+
+import com.topjohnwu.superuser.Shell;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Multiple jobs running in a single round trip.
+ */
+class JobPipeline implements Shell.Task {
+
+    final List<JobTask> jobs;
+
+    JobPipeline(List<JobTask> jobs) {
+        this.jobs = jobs;
+    }
+
+    @Override
+    public void run(@NonNull OutputStream stdin,
+                    @NonNull InputStream stdout,
+                    @NonNull InputStream stderr) {
+        new JobRunner(stdin, stdout, stderr, null).run(jobs);
+    }
+
+    @Override
+    public void shellDied() {
+        for (JobTask job : jobs)
+            job.shellDied();
+    }
+}
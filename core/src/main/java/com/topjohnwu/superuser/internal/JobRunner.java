@@ -0,0 +1,456 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import static com.topjohnwu.superuser.Shell.EXECUTOR;
+
+import android.os.Build;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.topjohnwu.superuser.Shell;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Runs jobs on a shell: writes the commands to STDIN, and demultiplexes STDOUT and STDERR
+ * into the outputs of each job.
+ * <p>
+ * Both streams are read on the thread running the jobs. On API 21+ the streams are
+ * multiplexed with poll(2), so no thread handoff is involved at all. On older platforms,
+ * STDERR is read by a single helper task for each batch of jobs.
+ */
+class JobRunner {
+
+    private static final String TAG = "JOBRUNNER";
+
+    // Inputs that fit in the pipe buffer are written directly before reading outputs
+    static final int INLINE_WRITE_LIMIT = 16 * 1024;
+
+    private final OutputStream stdin;
+    private final StreamGobbler out;
+    private final StreamGobbler err;
+    @Nullable private final StreamPoller poller;
+    @Nullable private final Runnable onError;
+    @Nullable private final Shell shell;
+    @Nullable private final Shell.Metrics metrics;
+    @Nullable private final CountingOutputStream counter;
+    // The time the current job started to run
+    private long jobStart;
+
+    // Guards writes to STDIN
+    private final Object writeLock = new Object();
+    // The tracked job currently running, which can only be the last job of a batch
+    @Nullable private volatile JobTask tracked;
+    @GuardedBy("writeLock")
+    private boolean killed;
+
+    // States of the helper task reading STDERR
+    private final Object errLock = new Object();
+    @GuardedBy("errLock")
+    private int errDone;
+
+    /**
+     * @param onError called when writing to STDIN failed, after which the shell is in an
+     *                unknown state. The callback should close the shell to unblock reads.
+     */
+    JobRunner(@NonNull OutputStream stdin,
+              @NonNull InputStream stdout,
+              @NonNull InputStream stderr,
+              @Nullable Runnable onError) {
+        this(stdin, stdout, stderr, onError, null, null);
+    }
+
+    /**
+     * @param shell the shell reported to {@code metrics}.
+     * @param metrics the listener of job statistics.
+     */
+    JobRunner(@NonNull OutputStream stdin,
+              @NonNull InputStream stdout,
+              @NonNull InputStream stderr,
+              @Nullable Runnable onError,
+              @Nullable Shell shell,
+              @Nullable Shell.Metrics metrics) {
+        InputStream rawOut = Utils.unwrapStream(stdout);
+        InputStream rawErr = Utils.unwrapStream(stderr);
+        this.out = new StreamGobbler(stdout, rawOut);
+        this.err = new StreamGobbler(stderr, rawErr);
+        this.onError = onError;
+        this.shell = shell;
+        this.metrics = shell == null ? null : metrics;
+        if (this.metrics != null) {
+            counter = new CountingOutputStream(stdin);
+            this.stdin = counter;
+        } else {
+            counter = null;
+            this.stdin = stdin;
+        }
+        poller = Build.VERSION.SDK_INT >= 21 ? StreamPoller.create(rawOut, rawErr) : null;
+    }
+
+    /**
+     * Discard all buffered outputs.
+     */
+    void reset() {
+        out.reset();
+        err.reset();
+    }
+
+    @Nullable
+    String readLine() {
+        return out.readLine();
+    }
+
+    /**
+     * Run multiple jobs in a single round trip. The commands of all jobs are written to
+     * STDIN back-to-back, and the outputs are separated by the end markers of each job.
+     * @return true if all jobs ended cleanly on their end markers with no data left
+     *         over, which means the shell is ready for the next job without resyncing.
+     */
+    boolean run(@NonNull List<? extends JobTask> batch) {
+        List<? extends JobTask> jobs = start(batch);
+        long input = 0;
+        for (JobTask job : jobs) {
+            job.prepare();
+            long len = job.inputLength();
+            input = (input < 0 || len < 0) ? -1 : input + len;
+        }
+
+        jobStart = System.nanoTime();
+        int written;
+        FutureTask<Integer> writer = null;
+        if (input >= 0 && input <= INLINE_WRITE_LIMIT) {
+            written = write(jobs);
+        } else {
+            // Outputs have to be consumed while writing, or both sides could block forever
+            writer = new FutureTask<>(() -> write(jobs));
+            EXECUTOR.execute(writer);
+            written = jobs.size();
+        }
+
+        if (poller == null) {
+            demuxBlocking(jobs, written, writer);
+        } else {
+            demuxPoll(jobs, written, writer);
+        }
+
+        if (writer != null)
+            written = join(writer);
+        synchronized (writeLock) {
+            // Killed jobs might leave orphan processes writing to the shell
+            if (killed)
+                return false;
+        }
+        return written == jobs.size() && out.isDrained() && err.isDrained();
+    }
+
+    /**
+     * Mark all jobs as running, and skip the jobs cancelled before they start.
+     */
+    private List<? extends JobTask> start(List<? extends JobTask> jobs) {
+        List<JobTask> cancelled = null;
+        for (JobTask job : jobs) {
+            if (!job.start(this)) {
+                if (cancelled == null)
+                    cancelled = new ArrayList<>();
+                cancelled.add(job);
+            }
+        }
+        if (cancelled == null)
+            return jobs;
+        for (JobTask job : cancelled) {
+            ResultImpl result = new ResultImpl();
+            result.code = Shell.Result.JOB_CANCELLED;
+            job.close();
+            job.setResult(result);
+        }
+        ArrayList<JobTask> list = new ArrayList<>(jobs);
+        list.removeAll(cancelled);
+        return list;
+    }
+
+    private int write(List<? extends JobTask> jobs) {
+        int written = 0;
+        synchronized (writeLock) {
+            killed = false;
+            try {
+                for (JobTask job : jobs) {
+                    long count = counter == null ? 0 : counter.count;
+                    byte[] start = job.startCmd();
+                    if (start != null)
+                        stdin.write(start);
+                    for (ShellInputSource src : job.sources)
+                        src.serve(stdin);
+                    byte[] end = job.endCmd();
+                    // The job cannot finish before the end command is written
+                    if (counter != null)
+                        job.bytesWritten = counter.count - count + end.length;
+                    stdin.write(end);
+                    ++written;
+                    if (job.isTracked()) {
+                        // Tracked jobs always end a batch
+                        tracked = job;
+                        if (job.getTimeout() > 0) {
+                            job.timer = ShellTimer.schedule(() -> {
+                                if (job.cancel(true))
+                                    Utils.log(TAG, "job timeout");
+                            }, job.getTimeout());
+                        }
+                    }
+                }
+                stdin.flush();
+            } catch (IOException e) {
+                Utils.err(e);
+                if (onError != null)
+                    onError.run();
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Kill the process tree of a running tracked job. The job will still end with its
+     * end markers, so the shell stays in sync.
+     */
+    void kill(JobTask job) {
+        EXECUTOR.execute(() -> {
+            synchronized (writeLock) {
+                if (tracked != job)
+                    return;
+                killed = true;
+                try {
+                    stdin.write(JobTask.KILL_CMD);
+                    stdin.flush();
+                } catch (IOException e) {
+                    Utils.err(e);
+                }
+            }
+        });
+    }
+
+    private void demuxPoll(List<? extends JobTask> jobs, int count,
+                           @Nullable FutureTask<Integer> writer) {
+        int outIdx = 0;
+        int errIdx = 0;
+        int done = 0;
+        int[] codes = new int[count];
+        if (count > 0) {
+            beginOut(jobs.get(0));
+            beginErr(jobs.get(0));
+        }
+        while (done < count) {
+            // Consume buffered data first
+            while (outIdx < count && out.step()) {
+                if (jobs.get(outIdx).binOut == null)
+                    codes[outIdx] = out.getCode();
+                jobs.get(outIdx).fail(out.getError());
+                if (metrics != null)
+                    collectOut(jobs.get(outIdx));
+                if (++outIdx < count)
+                    beginOut(jobs.get(outIdx));
+            }
+            while (errIdx < count && err.step()) {
+                if (jobs.get(errIdx).binOut != null)
+                    codes[errIdx] = err.getCode();
+                jobs.get(errIdx).fail(err.getError());
+                if (metrics != null)
+                    collectErr(jobs.get(errIdx));
+                if (++errIdx < count)
+                    beginErr(jobs.get(errIdx));
+            }
+            while (done < outIdx && done < errIdx) {
+                finish(jobs.get(done), done, codes[done], writer);
+                ++done;
+            }
+            if (done == count)
+                break;
+
+            int streams = (outIdx < count ? StreamPoller.OUT : 0)
+                    | (errIdx < count ? StreamPoller.ERR : 0);
+            int ready;
+            try {
+                ready = poller.poll(streams);
+            } catch (IOException e) {
+                Utils.err(e);
+                out.setEof();
+                err.setEof();
+                continue;
+            }
+            if ((ready & StreamPoller.OUT) != 0)
+                out.fill();
+            if ((ready & StreamPoller.ERR) != 0)
+                err.fill();
+        }
+        finishRest(jobs, count);
+    }
+
+    private void demuxBlocking(List<? extends JobTask> jobs, int count,
+                               @Nullable FutureTask<Integer> writer) {
+        int[] codes = new int[count];
+        synchronized (errLock) {
+            errDone = 0;
+        }
+        if (count > 0) {
+            EXECUTOR.execute(() -> {
+                for (int i = 0; i < count; ++i) {
+                    JobTask job = jobs.get(i);
+                    beginErr(job);
+                    err.finish();
+                    synchronized (errLock) {
+                        if (job.binOut != null)
+                            codes[i] = err.getCode();
+                        job.fail(err.getError());
+                        if (metrics != null)
+                            collectErr(job);
+                        ++errDone;
+                        errLock.notifyAll();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < count; ++i) {
+            JobTask job = jobs.get(i);
+            beginOut(job);
+            out.finish();
+            if (metrics != null)
+                collectOut(job);
+            synchronized (errLock) {
+                job.fail(out.getError());
+                if (job.binOut == null)
+                    codes[i] = out.getCode();
+                while (errDone <= i) {
+                    try {
+                        errLock.wait();
+                    } catch (InterruptedException ignored) {}
+                }
+            }
+            finish(job, i, codes[i], writer);
+        }
+        finishRest(jobs, count);
+    }
+
+    private void beginOut(JobTask job) {
+        if (job.binOut != null) {
+            out.beginBinary(job.binOut);
+        } else {
+            out.begin(job.outSink, true);
+        }
+    }
+
+    private void beginErr(JobTask job) {
+        // The return code of binary jobs is sent to STDERR
+        err.begin(job.errSink, job.binOut != null);
+    }
+
+    private void collectOut(JobTask job) {
+        job.bytesOut = out.getBytes();
+        job.linesOut = out.getLines();
+    }
+
+    private void collectErr(JobTask job) {
+        job.bytesErr = err.getBytes();
+        job.linesErr = err.getLines();
+    }
+
+    private static int join(FutureTask<Integer> writer) {
+        for (;;) {
+            try {
+                return writer.get();
+            } catch (InterruptedException ignored) {
+            } catch (ExecutionException e) {
+                Utils.err(e);
+                return 0;
+            }
+        }
+    }
+
+    private void finish(JobTask job, int idx, int code, @Nullable FutureTask<Integer> writer) {
+        end(job);
+        ResultImpl result = new ResultImpl();
+        // If the outputs ended early, the job might not be completely written
+        if (writer == null || !(out.isEof() || err.isEof()) || join(writer) > idx) {
+            result.code = job.isCancelled() ? Shell.Result.JOB_CANCELLED : code;
+            result.out = job.outList;
+            result.err = job.err == JobTask.UNSET_LIST ? null : job.err;
+        }
+        result.error = job.error;
+        job.close();
+        if (metrics != null) {
+            long now = System.nanoTime();
+            metrics.onJobFinished(shell, now - jobStart, job.bytesWritten, job.bytesOut,
+                    job.bytesErr, job.linesOut, job.linesErr, result.code);
+            jobStart = now;
+        }
+        job.setResult(result);
+    }
+
+    private void finishRest(List<? extends JobTask> jobs, int from) {
+        for (int i = from; i < jobs.size(); ++i) {
+            JobTask job = jobs.get(i);
+            end(job);
+            job.close();
+            job.setResult(new ResultImpl());
+        }
+    }
+
+    private void end(JobTask job) {
+        ScheduledFuture<?> timer = job.timer;
+        if (timer != null) {
+            timer.cancel(false);
+            job.timer = null;
+        }
+        if (tracked == job) {
+            // Make sure no kill command is sent after the job ends
+            synchronized (writeLock) {
+                tracked = null;
+            }
+        }
+        job.finished();
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+
+        // Only updated while holding writeLock
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -16,7 +16,6 @@
 
 package com.topjohnwu.superuser.internal;
 
-import static com.topjohnwu.superuser.Shell.EXECUTOR;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import androidx.annotation.NonNull;
@@ -24,16 +23,20 @@ import androidx.annotation.Nullable;
 
 import com.topjohnwu.superuser.Shell;
 
-import java.io.IOException;
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 abstract class JobTask extends Shell.Job implements Shell.Task {
 
@@ -41,27 +44,183 @@ abstract class JobTask extends Shell.Job implements Shell.Task {
 
     static final String END_UUID = UUID.randomUUID().toString();
     static final int UUID_LEN = 36;
-    private static final byte[] END_CMD = String
-            .format("__RET=$?;echo %1$s;echo %1$s >&2;echo $__RET;unset __RET\n", END_UUID)
-            .getBytes(UTF_8);
+    private static final String END_FMT = "__RET=$?;echo %1$s;echo %1$s >&2;echo $__RET%2$s;unset __RET";
+    static final byte[] END_CMD = String.format(END_FMT + "\n", END_UUID, "").getBytes(UTF_8);
+    // The return code is sent to STDERR, so the end marker is the last thing on STDOUT
+    private static final byte[] END_CMD_BINARY =
+            String.format(END_FMT + "\n", END_UUID, " >&2").getBytes(UTF_8);
 
-    private final List<ShellInputSource> sources = new ArrayList<>();
+    // Tracked jobs run in a background subshell, and the shell keeps reading STDIN while the
+    // job is running. On SIGUSR1, the wrapper kills the whole process tree of the subshell
+    // and sends the end markers as usual. SIGUSR1 is ignored before the trap is installed.
+    private static final byte[] START_CMD_TRACKED = ("__libsu_kill() { kill -STOP $1 2>/dev/null;" +
+            "for __c in $(pgrep -P $1 2>/dev/null);do __libsu_kill $__c;done;" +
+            "kill -9 $1 2>/dev/null; }\n" +
+            "trap '' USR1\n" +
+            "{ trap '__libsu_kill $__P' USR1;(\n").getBytes(UTF_8);
+    private static final String TRACKED_END_FMT = ") </dev/null & __P=$!;wait $__P;" + END_FMT + ";} &\n__JOB=$!\n";
+    private static final byte[] END_CMD_TRACKED =
+            String.format(TRACKED_END_FMT, END_UUID, "").getBytes(UTF_8);
+    private static final byte[] END_CMD_TRACKED_BINARY =
+            String.format(TRACKED_END_FMT, END_UUID, " >&2").getBytes(UTF_8);
+    static final byte[] KILL_CMD = "kill -USR1 $__JOB 2>/dev/null\n".getBytes(UTF_8);
+
+    private static final int STATE_NEW = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_CANCELLED = 2;
+    private static final int STATE_DONE = 3;
+
+    final List<ShellInputSource> sources = new ArrayList<>();
     @Nullable private List<String> out = null;
-    @Nullable private List<String> err = UNSET_LIST;
+    @Nullable List<String> err = UNSET_LIST;
+
+    @Nullable private StreamGobbler.LineSink rawOut;
+    @Nullable private StreamGobbler.LineSink rawErr;
+    @Nullable StreamGobbler.BinarySink binOut;
+
+    // The actual output destinations, resolved right before running the job
+    @Nullable List<String> outList;
+    @Nullable List<String> errList;
+    @Nullable StreamGobbler.LineSink outSink;
+    @Nullable StreamGobbler.LineSink errSink;
 
     @Nullable protected Executor callbackExecutor;
     @Nullable protected Shell.ResultCallback callback;
 
-    private void setResult(@NonNull ResultImpl result) {
+    private final AtomicInteger state = new AtomicInteger(STATE_NEW);
+    @Nullable private volatile JobRunner runner;
+    private long timeout = 0;
+    private int priority = PRIORITY_DEFAULT;
+    private boolean idempotent = false;
+    @Nullable volatile ScheduledFuture<?> timer;
+
+    @Nullable private ResultCache cache;
+    // Set when this job runs the commands for other jobs waiting in the cache
+    @Nullable ResultCache.Key cacheKey;
+
+    // Statistics, only collected when metrics are enabled
+    long queuedAt;
+    volatile long bytesWritten;
+    long bytesOut;
+    long bytesErr;
+    int linesOut;
+    int linesErr;
+
+    // The first exception thrown by the output sinks of the current run
+    @Nullable Throwable error;
+
+    /**
+     * Reset the job before it is submitted for execution.
+     */
+    void setCallback(@Nullable Executor executor, @Nullable Shell.ResultCallback cb) {
+        callbackExecutor = executor;
+        callback = cb;
+        error = null;
+        state.set(STATE_NEW);
+    }
+
+    synchronized void fail(@Nullable Throwable t) {
+        if (error == null)
+            error = t;
+    }
+
+    /**
+     * Mark the job as running.
+     * @return false if the job is cancelled before it starts.
+     */
+    boolean start(JobRunner r) {
+        runner = r;
+        return state.compareAndSet(STATE_NEW, STATE_RUNNING);
+    }
+
+    void finished() {
+        state.compareAndSet(STATE_RUNNING, STATE_DONE);
+    }
+
+    /**
+     * Cancel the job. Jobs that are not started yet will never run, and running jobs will be
+     * killed only if they are tracked.
+     * @return true if the job is cancelled.
+     */
+    boolean cancel(boolean mayKill) {
+        for (;;) {
+            int s = state.get();
+            if (s == STATE_NEW) {
+                if (state.compareAndSet(STATE_NEW, STATE_CANCELLED))
+                    return true;
+            } else if (s == STATE_RUNNING && mayKill && isTracked()) {
+                if (state.compareAndSet(STATE_RUNNING, STATE_CANCELLED)) {
+                    JobRunner r = runner;
+                    if (r != null)
+                        r.kill(this);
+                    return true;
+                }
+            } else {
+                return false;
+            }
+        }
+    }
+
+    boolean isCancelled() {
+        return state.get() == STATE_CANCELLED;
+    }
+
+    /**
+     * @return whether the job can run in another shell after its shell died.
+     */
+    boolean canReplay() {
+        return idempotent && state.get() == STATE_NEW;
+    }
+
+    long getTimeout() {
+        return timeout;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    boolean isTracked() {
+        return timeout > 0;
+    }
+
+    /**
+     * Binary outputs have to be the last data on STDOUT, and tracked jobs run in
+     * the background, so no jobs can be pipelined after them.
+     */
+    boolean endsBatch() {
+        return binOut != null || isTracked();
+    }
+
+    /**
+     * Serve the job from the cache if enabled. The callback has to be set before.
+     * @return true if the job should not run in the shell.
+     */
+    boolean fromCache(Shell shell) {
+        return cache != null && cache.lookup(shell, this);
+    }
+
+    void setResult(@NonNull ResultImpl result) {
+        if (cacheKey != null)
+            cache.complete(this, result);
         if (callback != null) {
             if (callbackExecutor == null)
-                callback.onResult(result);
+                deliver(callback, result);
             else
                 callbackExecutor.execute(() -> callback.onResult(result));
         }
     }
 
-    private void close() {
+    private static void deliver(Shell.ResultCallback cb, Shell.Result result) {
+        try {
+            cb.onResult(result);
+        } catch (Throwable t) {
+            // Callbacks run on the shell task thread, which must never be interrupted
+            Utils.err(t);
+        }
+    }
+
+    void close() {
         for (ShellInputSource src : sources)
             src.close();
     }
@@ -70,13 +229,43 @@ abstract class JobTask extends Shell.Job implements Shell.Task {
     public void run(@NonNull OutputStream stdin,
                     @NonNull InputStream stdout,
                     @NonNull InputStream stderr) {
+        new JobRunner(stdin, stdout, stderr, null).run(Collections.singletonList(this));
+    }
+
+    /**
+     * @return the maximum number of bytes written to STDIN to run this job, or -1 if unknown.
+     */
+    long inputLength() {
+        long len = endCmd().length + (isTracked() ? START_CMD_TRACKED.length : 0);
+        for (ShellInputSource src : sources) {
+            long l = src.length();
+            if (l < 0)
+                return -1;
+            len += l;
+        }
+        return len;
+    }
+
+    @Nullable
+    byte[] startCmd() {
+        return isTracked() ? START_CMD_TRACKED : null;
+    }
+
+    byte[] endCmd() {
+        if (isTracked())
+            return binOut == null ? END_CMD_TRACKED : END_CMD_TRACKED_BINARY;
+        return binOut == null ? END_CMD : END_CMD_BINARY;
+    }
+
+    void prepare() {
         final boolean noOut = out == UNSET_LIST;
         final boolean noErr = err == UNSET_LIST;
 
-        List<String> outList = noOut ? (callback == null ? null : new ArrayList<>()) : out;
-        List<String> errList = noErr ? (Shell.enableLegacyStderrRedirection ? outList : null) : err;
+        outList = noOut ? (callback == null ? null : new ArrayList<>()) : out;
+        errList = noErr ? (Shell.enableLegacyStderrRedirection ? outList : null) : err;
 
-        if (outList != null && outList == errList && !Utils.isSynchronized(outList)) {
+        if (outList != null && outList == errList && !Utils.isSynchronized(outList)
+                && !(outList instanceof Shell.RawLineCallback)) {
             // Synchronize the list internally only if both lists are the same and are not
             // already synchronized by the user
             List<String> list = Collections.synchronizedList(outList);
@@ -84,30 +273,32 @@ abstract class JobTask extends Shell.Job implements Shell.Task {
             errList = list;
         }
 
-        FutureTask<Integer> outGobbler = new FutureTask<>(new StreamGobbler.OUT(stdout, outList));
-        FutureTask<Void> errGobbler = new FutureTask<>(new StreamGobbler.ERR(stderr, errList));
-        EXECUTOR.execute(outGobbler);
-        EXECUTOR.execute(errGobbler);
-
-        ResultImpl result = new ResultImpl();
-        try {
-            for (ShellInputSource src : sources)
-                src.serve(stdin);
-            stdin.write(END_CMD);
-            stdin.flush();
-
-            int code = outGobbler.get();
-            errGobbler.get();
-
-            result.code = code;
-            result.out = outList;
-            result.err = noErr ? null : err;
-        } catch (IOException | ExecutionException | InterruptedException e) {
-            Utils.err(e);
+        if (rawOut == null && rawErr == null) {
+            boolean shared = outList == errList;
+            outSink = sinkOf(outList, shared);
+            errSink = sinkOf(errList, shared);
+        } else {
+            outSink = rawOut;
+            errSink = rawErr;
         }
+    }
 
-        close();
-        setResult(result);
+    @Nullable
+    private static StreamGobbler.LineSink sinkOf(@Nullable List<String> list, boolean shared) {
+        if (list == null)
+            return null;
+        if (list instanceof Shell.RawLineCallback) {
+            // Pass the bytes directly without creating strings
+            Shell.RawLineCallback l = (Shell.RawLineCallback) list;
+            if (!shared)
+                return l::onLine;
+            return (buf, off, len) -> {
+                synchronized (l) {
+                    l.onLine(buf, off, len);
+                }
+            };
+        }
+        return new StreamGobbler.ListSink(list);
     }
 
     @Override
@@ -121,6 +312,9 @@ abstract class JobTask extends Shell.Job implements Shell.Task {
     public Shell.Job to(List<String> stdout) {
         out = stdout;
         err = UNSET_LIST;
+        rawOut = null;
+        rawErr = null;
+        binOut = null;
         return this;
     }
 
@@ -129,6 +323,87 @@ abstract class JobTask extends Shell.Job implements Shell.Task {
     public Shell.Job to(List<String> stdout, List<String> stderr) {
         out = stdout;
         err = stderr;
+        rawOut = null;
+        rawErr = null;
+        binOut = null;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job toRaw(Shell.RawLineCallback stdout, Shell.RawLineCallback stderr) {
+        out = null;
+        err = null;
+        rawOut = stdout == null ? null : stdout::onLine;
+        rawErr = stderr == null ? null : stderr::onLine;
+        binOut = null;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job toStream(Shell.LineConsumer stdout, Shell.LineConsumer stderr) {
+        out = null;
+        err = null;
+        rawOut = stdout == null ? null :
+                (buf, off, len) -> stdout.onLine(new String(buf, off, len, UTF_8));
+        rawErr = stderr == null ? null :
+                (buf, off, len) -> stderr.onLine(new String(buf, off, len, UTF_8));
+        binOut = null;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job toBinary(OutputStream stdout) {
+        out = null;
+        err = null;
+        rawOut = null;
+        rawErr = null;
+        binOut = stdout == null ? (buf, off, len) -> {} : stdout::write;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job toBinary(WritableByteChannel stdout) {
+        out = null;
+        err = null;
+        rawOut = null;
+        rawErr = null;
+        binOut = stdout == null ? (buf, off, len) -> {} : (buf, off, len) -> {
+            ByteBuffer b = ByteBuffer.wrap(buf, off, len);
+            while (b.hasRemaining())
+                stdout.write(b);
+        };
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job timeout(long t, @NonNull TimeUnit unit) {
+        timeout = t > 0 ? Math.max(unit.toMillis(t), 1) : 0;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job priority(int p) {
+        priority = Math.max(PRIORITY_INTERACTIVE, Math.min(p, PRIORITY_BULK));
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job idempotent(boolean b) {
+        idempotent = b;
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job cache(@Nullable Shell.Cache c) {
+        cache = (ResultCache) c;
         return this;
     }
 
@@ -140,6 +415,22 @@ abstract class JobTask extends Shell.Job implements Shell.Task {
         return this;
     }
 
+    @NonNull
+    @Override
+    public Shell.Job add(@NonNull File file) {
+        if (file != null)
+            sources.add(new ChannelSource(file));
+        return this;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Job add(@NonNull FileChannel channel) {
+        if (channel != null)
+            sources.add(new ChannelSource(channel));
+        return this;
+    }
+
     @NonNull
     @Override
     public Shell.Job add(@NonNull String... cmds) {
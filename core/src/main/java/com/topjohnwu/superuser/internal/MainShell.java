@@ -26,6 +26,9 @@ import com.topjohnwu.superuser.NoShellException;
 import com.topjohnwu.superuser.Shell;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 
 @RestrictTo(RestrictTo.Scope.LIBRARY)
@@ -35,25 +38,152 @@ public final class MainShell {
     private static final ShellImpl[] mainShell = new ShellImpl[1];
 
     @GuardedBy("class")
-    private static boolean isInitMain;
+    private static Creation creation;
     @GuardedBy("class")
     private static BuilderImpl mainBuilder;
+    @GuardedBy("class")
+    private static ShellPool pool;
 
     private MainShell() {}
 
-    public static synchronized ShellImpl get() {
-        ShellImpl shell = getCached();
-        if (shell == null) {
-            if (isInitMain) {
+    /**
+     * The creation of the main shell shared by all threads requesting it. The shell is built
+     * on a single thread; other threads either wait on the latch or register a callback,
+     * and no lock is held while waiting.
+     */
+    private static final class Creation implements Runnable {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        @GuardedBy("this")
+        private final List<Runnable> callbacks = new ArrayList<>();
+        private volatile Thread thread;
+        private ShellImpl shell;
+        private Throwable error;
+
+        Creation() {}
+
+        /**
+         * A creation that already finished with {@code s}.
+         */
+        Creation(ShellImpl s) {
+            shell = s;
+            latch.countDown();
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            try {
+                BuilderImpl builder;
+                synchronized (MainShell.class) {
+                    if (mainBuilder == null)
+                        mainBuilder = new BuilderImpl();
+                    builder = mainBuilder;
+                }
+                shell = builder.build();
+                synchronized (MainShell.class) {
+                    if (pool == null && builder.isPoolEnabled())
+                        pool = new ShellPool(builder);
+                }
+            } catch (Throwable t) {
+                // Also errors thrown by initializers, the waiting threads must not hang
+                error = t;
+            } finally {
+                synchronized (MainShell.class) {
+                    creation = null;
+                }
+                List<Runnable> list;
+                synchronized (this) {
+                    latch.countDown();
+                    list = new ArrayList<>(callbacks);
+                    callbacks.clear();
+                }
+                for (Runnable r : list)
+                    r.run();
+            }
+        }
+
+        ShellImpl await() {
+            if (latch.getCount() != 0 && thread == Thread.currentThread()) {
+                // Requested by an initializer while the shell is not usable
                 throw new NoShellException("The main shell died during initialization");
             }
-            isInitMain = true;
-            if (mainBuilder == null)
-                mainBuilder = new BuilderImpl();
-            shell = mainBuilder.build();
-            isInitMain = false;
+            boolean interrupted = false;
+            for (;;) {
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+            if (error instanceof RuntimeException)
+                throw (RuntimeException) error;
+            if (error != null)
+                throw new NoShellException("Unable to create the main shell", error);
+            return shell;
+        }
+
+        void listen(Executor executor, GetShellCallback callback) {
+            Runnable r = () -> {
+                if (error != null)
+                    Utils.ex(error);
+                else
+                    returnShell(shell, executor, callback);
+            };
+            synchronized (this) {
+                if (latch.getCount() != 0) {
+                    callbacks.add(r);
+                    return;
+                }
+            }
+            r.run();
+        }
+    }
+
+    /**
+     * @param owner set to true if the caller has to run the returned creation.
+     */
+    private static synchronized Creation getCreation(boolean[] owner) {
+        if (creation == null) {
+            // The previous creation could have finished after the caller checked the cache
+            ShellImpl s = getCached();
+            if (s != null)
+                return new Creation(s);
+            creation = new Creation();
+            owner[0] = true;
         }
-        return shell;
+        return creation;
+    }
+
+    public static ShellImpl get() {
+        ShellImpl shell = getCached();
+        if (shell != null)
+            return shell;
+        boolean[] owner = new boolean[1];
+        Creation c = getCreation(owner);
+        if (owner[0])
+            c.run();
+        return c.await();
+    }
+
+    private static synchronized ShellPool getPool() {
+        return pool;
+    }
+
+    static ShellImpl acquire() {
+        ShellImpl shell = get();
+        ShellPool p = getPool();
+        return p == null ? shell : p.select(shell);
+    }
+
+    static void acquire(GetShellCallback callback) {
+        get(null, s -> {
+            ShellPool p = getPool();
+            callback.onShell(p == null ? s : p.select((ShellImpl) s));
+        });
     }
 
     private static void returnShell(Shell s, Executor e, GetShellCallback cb) {
@@ -69,16 +199,23 @@ public final class MainShell {
             returnShell(shell, executor, callback);
         } else {
             // Else we get shell in worker thread and call the callback when we get a Shell
-            EXECUTOR.execute(() -> {
-                try {
-                    returnShell(get(), executor, callback);
-                } catch (NoShellException e) {
-                    Utils.ex(e);
-                }
-            });
+            boolean[] owner = new boolean[1];
+            Creation c = getCreation(owner);
+            c.listen(executor, callback);
+            if (owner[0])
+                EXECUTOR.execute(c);
         }
     }
 
+    public static void prewarm(Executor executor) {
+        if (getCached() != null)
+            return;
+        boolean[] owner = new boolean[1];
+        Creation c = getCreation(owner);
+        if (owner[0])
+            (executor == null ? EXECUTOR : executor).execute(c);
+    }
+
     public static ShellImpl getCached() {
         synchronized (mainShell) {
             ShellImpl s = mainShell[0];
@@ -90,16 +227,25 @@ public final class MainShell {
         }
     }
 
-    static synchronized void setCached(ShellImpl shell) {
-        if (isInitMain) {
+    static void setCached(ShellImpl shell) {
+        Creation c;
+        synchronized (MainShell.class) {
+            c = creation;
+        }
+        // Only the thread creating the main shell can set it
+        if (c != null && c.thread == Thread.currentThread()) {
             synchronized (mainShell) {
+                if (shell != null)
+                    shell.main = true;
+                else if (mainShell[0] != null)
+                    mainShell[0].main = false;
                 mainShell[0] = shell;
             }
         }
     }
 
     public static synchronized void setBuilder(Shell.Builder builder) {
-        if (isInitMain || getCached() != null) {
+        if (creation != null || getCached() != null) {
             throw new IllegalStateException("The main shell was already created");
         }
         mainBuilder = (BuilderImpl) builder;
@@ -21,6 +21,7 @@ import androidx.annotation.Nullable;
 
 import com.topjohnwu.superuser.NoShellException;
 import com.topjohnwu.superuser.Shell;
+import com.topjohnwu.superuser.ShellFuture;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -47,14 +48,18 @@ class PendingJob extends JobTask {
         }
     }
 
-    private void exec0() {
+    private void exec0(ResultHolder holder) {
         ShellImpl shell;
         try {
-            shell = MainShell.get();
+            shell = MainShell.acquire();
         } catch (NoShellException e) {
             super.shellDied();
             return;
         }
+        if (fromCache(shell)) {
+            holder.await();
+            return;
+        }
         try {
             shell.execTask(this);
         } catch (IOException ignored) { /* JobTask does not throw */ }
@@ -63,18 +68,18 @@ class PendingJob extends JobTask {
     @NonNull
     @Override
     public Shell.Result exec() {
-        retryTask = this::exec0;
         ResultHolder holder = new ResultHolder();
-        callback = holder;
-        callbackExecutor = null;
-        exec0();
+        retryTask = () -> exec0(holder);
+        setCallback(null, holder);
+        exec0(holder);
         return holder.getResult();
     }
 
     private void submit0() {
-        MainShell.get(null, s -> {
+        MainShell.acquire(s -> {
             ShellImpl shell = (ShellImpl) s;
-            shell.submitTask(this);
+            if (!fromCache(shell))
+                shell.submitTask(this);
         });
     }
 
@@ -82,9 +87,18 @@ class PendingJob extends JobTask {
     @Override
     public Future<Shell.Result> enqueue() {
         retryTask = this::submit0;
-        ResultFuture future = new ResultFuture();
-        callback = future;
-        callbackExecutor = null;
+        ResultFuture future = new ResultFuture(this);
+        setCallback(null, future);
+        submit0();
+        return future;
+    }
+
+    @NonNull
+    @Override
+    public ShellFuture<Shell.Result> async() {
+        retryTask = this::submit0;
+        JobFuture future = new JobFuture(this);
+        setCallback(null, future);
         submit0();
         return future;
     }
@@ -92,8 +106,7 @@ class PendingJob extends JobTask {
     @Override
     public void submit(@Nullable Executor executor, @Nullable Shell.ResultCallback cb) {
         retryTask = this::submit0;
-        callbackExecutor = executor;
-        callback = cb;
+        setCallback(executor, cb);
         submit0();
     }
 }
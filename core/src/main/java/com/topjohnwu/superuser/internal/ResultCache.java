@@ -0,0 +1,263 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+import com.topjohnwu.superuser.Shell;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class ResultCache extends Shell.Cache {
+
+    private static final int MODE_OUT = 1;
+    private static final int MODE_ERR = 2;
+    private static final int MODE_SHARED = 4;
+
+    static final class Key {
+        private final Shell shell;
+        private final String cmd;
+        private final int mode;
+
+        private Key(Shell shell, String cmd, int mode) {
+            this.shell = shell;
+            this.cmd = cmd;
+            this.mode = mode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return shell == k.shell && mode == k.mode && cmd.equals(k.cmd);
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(shell) * 31 + cmd.hashCode()) * 31 + mode;
+        }
+    }
+
+    private static final class CacheEntry {
+        final List<String> out;
+        final List<String> err;
+        final int code;
+        final long time;
+
+        CacheEntry(List<String> out, List<String> err, int code, long time) {
+            this.out = out;
+            this.err = err;
+            this.code = code;
+            this.time = time;
+        }
+    }
+
+    private static final class Pending {
+        final List<JobTask> waiters = new ArrayList<>();
+        final int generation;
+
+        Pending(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    private final long ttl;
+    private final LinkedHashMap<Key, CacheEntry> entries;
+    private final Map<Key, Pending> pending = new HashMap<>();
+    // Increased on every invalidation, so results of jobs started before are not stored
+    private int generation = 0;
+
+    public ResultCache(int maxEntries, long ttl) {
+        this.ttl = ttl;
+        int max = Math.max(maxEntries, 1);
+        entries = new LinkedHashMap<Key, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, CacheEntry> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    /**
+     * Serve the result of the job from the cache, or make the job wait for the same
+     * commands already running. Otherwise, the job becomes the one running the commands.
+     * The callback of the job has to be set before calling this method.
+     * @return false if the job has to run in the shell.
+     */
+    boolean lookup(Shell shell, JobTask job) {
+        if (job.cacheKey != null) {
+            // Retried on a new shell, keep running the commands
+            return false;
+        }
+        job.prepare();
+        Key key = keyOf(shell, job);
+        if (key == null)
+            return false;
+        CacheEntry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && System.nanoTime() - e.time >= ttl) {
+                entries.remove(key);
+                e = null;
+            }
+            if (e == null) {
+                Pending p = pending.get(key);
+                if (p != null) {
+                    p.waiters.add(job);
+                    return true;
+                }
+                pending.put(key, new Pending(generation));
+                job.cacheKey = key;
+                return false;
+            }
+        }
+        Utils.log("LIBSU_CACHE", "hit");
+        serve(job, e);
+        return true;
+    }
+
+    /**
+     * Store the result of the job running the commands, and serve the waiting jobs.
+     * Any exit code is a valid answer to read-only commands and is stored and shared.
+     * If the commands did not run or were cancelled, the waiting jobs run the commands
+     * themselves.
+     */
+    void complete(JobTask job, ResultImpl result) {
+        Key key = job.cacheKey;
+        job.cacheKey = null;
+        CacheEntry e = null;
+        if (result.code >= 0 && result.error == null) {
+            List<String> out = result.out == null ? null : snapshot(result.out);
+            List<String> err = (key.mode & MODE_SHARED) != 0 || result.err == null ?
+                    null : snapshot(result.err);
+            e = new CacheEntry(out, err, result.code, System.nanoTime());
+        }
+        Pending p;
+        synchronized (this) {
+            p = pending.remove(key);
+            if (e != null && p != null && p.generation == generation)
+                entries.put(key, e);
+        }
+        if (p == null)
+            return;
+        for (JobTask w : p.waiters) {
+            if (w.isCancelled()) {
+                ResultImpl r = new ResultImpl();
+                r.code = Shell.Result.JOB_CANCELLED;
+                w.close();
+                w.setResult(r);
+            } else if (e != null) {
+                serve(w, e);
+            } else {
+                // Not through the cache, so the job does not wait for others again
+                ((ShellImpl) key.shell).submitTask(w);
+            }
+        }
+    }
+
+    private static List<String> snapshot(List<String> list) {
+        // The list could be synchronized when shared between STDOUT and STDERR
+        synchronized (list) {
+            return Collections.unmodifiableList(new ArrayList<>(list));
+        }
+    }
+
+    private static void serve(JobTask job, CacheEntry e) {
+        ResultImpl result = new ResultImpl();
+        result.code = e.code;
+        if (job.outList != null) {
+            if (e.out != null)
+                job.outList.addAll(e.out);
+            result.out = job.outList;
+        }
+        if (job.err != JobTask.UNSET_LIST) {
+            if (job.err != null && job.err != job.outList && e.err != null)
+                job.err.addAll(e.err);
+            result.err = job.err;
+        }
+        job.close();
+        job.setResult(result);
+    }
+
+    private static Key keyOf(Shell shell, JobTask job) {
+        // Only outputs collected into lists can be cached
+        if (job.sources.isEmpty() || job.binOut != null
+                || (job.outList == null && job.outSink != null)
+                || (job.errList == null && job.errSink != null))
+            return null;
+        StringBuilder sb = new StringBuilder();
+        for (ShellInputSource src : job.sources) {
+            if (!(src instanceof CommandSource))
+                return null;
+            ((CommandSource) src).appendTo(sb);
+        }
+        int mode = 0;
+        if (job.outList != null)
+            mode |= MODE_OUT;
+        if (job.errList != null)
+            mode |= job.errList == job.outList ? MODE_SHARED : MODE_ERR;
+        return new Key(shell, sb.toString(), mode);
+    }
+
+    @Override
+    public void invalidate(@NonNull Shell shell, @NonNull String... cmds) {
+        StringBuilder sb = new StringBuilder();
+        CommandSource.append(sb, cmds);
+        String cmd = sb.toString();
+        synchronized (this) {
+            ++generation;
+            Iterator<Key> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                Key k = it.next();
+                if (k.shell == shell && k.cmd.equals(cmd))
+                    it.remove();
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(@NonNull Shell shell) {
+        synchronized (this) {
+            ++generation;
+            Iterator<Key> it = entries.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().shell == shell)
+                    it.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        ++generation;
+        entries.clear();
+    }
+
+    @Override
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -20,7 +20,9 @@ import androidx.annotation.NonNull;
 
 import com.topjohnwu.superuser.Shell;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -28,6 +30,11 @@ import java.util.concurrent.TimeoutException;
 class ResultFuture extends ResultHolder implements Future<Shell.Result> {
 
     private final CountDownLatch latch = new CountDownLatch(1);
+    private final JobTask job;
+
+    ResultFuture(JobTask job) {
+        this.job = job;
+    }
 
     @Override
     public void onResult(@NonNull Shell.Result out) {
@@ -37,12 +44,15 @@ class ResultFuture extends ResultHolder implements Future<Shell.Result> {
 
     @Override
     public boolean cancel(boolean mayInterruptIfRunning) {
-        return latch.getCount() != 0;
+        if (latch.getCount() == 0 || !job.cancel(mayInterruptIfRunning))
+            return false;
+        latch.countDown();
+        return true;
     }
 
     @Override
     public boolean isCancelled() {
-        return false;
+        return job.isCancelled();
     }
 
     @Override
@@ -51,17 +61,27 @@ class ResultFuture extends ResultHolder implements Future<Shell.Result> {
     }
 
     @Override
-    public Shell.Result get() throws InterruptedException {
+    public Shell.Result get() throws InterruptedException, ExecutionException {
         latch.await();
+        if (isCancelled())
+            throw new CancellationException();
+        Throwable t = getError();
+        if (t != null)
+            throw new ExecutionException(t);
         return getResult();
     }
 
     @Override
     public Shell.Result get(long timeout, TimeUnit unit)
-            throws InterruptedException, TimeoutException {
+            throws InterruptedException, ExecutionException, TimeoutException {
         if (!latch.await(timeout, unit)) {
             throw new TimeoutException();
         }
+        if (isCancelled())
+            throw new CancellationException();
+        Throwable t = getError();
+        if (t != null)
+            throw new ExecutionException(t);
         return getResult();
     }
 }
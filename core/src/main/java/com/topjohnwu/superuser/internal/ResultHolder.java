@@ -27,12 +27,46 @@ class ResultHolder implements Shell.ResultCallback {
     private Shell.Result result;
 
     @Override
-    public void onResult(@NonNull Shell.Result out) {
+    public synchronized void onResult(@NonNull Shell.Result out) {
         result = out;
+        notifyAll();
     }
 
+    /**
+     * Wait for the result delivered from another thread.
+     */
+    @NonNull
+    synchronized Shell.Result await() {
+        boolean interrupted = false;
+        while (result == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        return getResult();
+    }
+
+    /**
+     * @return the result, or rethrow the exception thrown by the output sinks of the job.
+     */
     @NonNull
     Shell.Result getResult() {
+        Throwable t = getError();
+        if (t instanceof RuntimeException)
+            throw (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        if (t != null)
+            throw new RuntimeException(t);
         return result == null ? new ResultImpl() : result;
     }
+
+    @Nullable
+    Throwable getError() {
+        return result instanceof ResultImpl ? ((ResultImpl) result).error : null;
+    }
 }
@@ -17,6 +17,7 @@
 package com.topjohnwu.superuser.internal;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.topjohnwu.superuser.Shell;
 
@@ -27,6 +28,8 @@ class ResultImpl extends Shell.Result {
     List<String> out;
     List<String> err;
     int code = JOB_NOT_EXECUTED;
+    // Thrown by the output sinks while the job was running
+    @Nullable Throwable error;
 
     @NonNull
     @Override
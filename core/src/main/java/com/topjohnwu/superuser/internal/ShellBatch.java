@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import androidx.annotation.NonNull;
+
+import com.topjohnwu.superuser.Shell;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+class ShellBatch extends Shell.Batch {
+
+    @NonNull
+    private final ShellImpl shell;
+    private final List<JobTask> jobs = new ArrayList<>();
+
+    ShellBatch(@NonNull ShellImpl s) {
+        shell = s;
+    }
+
+    @NonNull
+    @Override
+    public Shell.Batch add(@NonNull String... cmds) {
+        JobTask job = new ShellJob(shell);
+        job.add(cmds).to(new ArrayList<>());
+        jobs.add(job);
+        return this;
+    }
+
+    @Override
+    public int size() {
+        return jobs.size();
+    }
+
+    private BatchFuture prepare() {
+        BatchFuture future = new BatchFuture(new ArrayList<>(jobs));
+        for (int i = 0; i < jobs.size(); ++i) {
+            final int idx = i;
+            JobTask job = jobs.get(i);
+            job.setCallback(null, out -> future.setResult(idx, out));
+        }
+        return future;
+    }
+
+    @NonNull
+    @Override
+    public List<Shell.Result> exec() {
+        BatchFuture future = prepare();
+        if (!jobs.isEmpty()) {
+            try {
+                shell.execTask(new JobPipeline(new ArrayList<>(jobs)));
+            } catch (IOException ignored) { /* JobPipeline does not throw */ }
+        }
+        return future.getResults();
+    }
+
+    @NonNull
+    @Override
+    public Future<List<Shell.Result>> enqueue() {
+        BatchFuture future = prepare();
+        if (!jobs.isEmpty())
+            shell.submitTask(new JobPipeline(new ArrayList<>(jobs)));
+        return future;
+    }
+
+    private static class BatchFuture implements Future<List<Shell.Result>> {
+
+        private final List<JobTask> jobs;
+        private final Shell.Result[] results;
+        private final CountDownLatch latch;
+        private volatile boolean cancelled = false;
+
+        BatchFuture(List<JobTask> jobs) {
+            this.jobs = jobs;
+            results = new Shell.Result[jobs.size()];
+            latch = new CountDownLatch(jobs.size());
+        }
+
+        void setResult(int idx, Shell.Result result) {
+            results[idx] = result;
+            latch.countDown();
+        }
+
+        List<Shell.Result> getResults() {
+            return Arrays.asList(results);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (latch.getCount() == 0)
+                return false;
+            boolean any = false;
+            for (JobTask job : jobs) {
+                if (job.cancel(mayInterruptIfRunning))
+                    any = true;
+            }
+            if (!any)
+                return false;
+            cancelled = true;
+            // Release all waiting threads, the results will never be returned
+            while (latch.getCount() != 0)
+                latch.countDown();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public List<Shell.Result> get() throws InterruptedException {
+            latch.await();
+            if (cancelled)
+                throw new CancellationException();
+            return getResults();
+        }
+
+        @Override
+        public List<Shell.Result> get(long timeout, TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            if (cancelled)
+                throw new CancellationException();
+            return getResults();
+        }
+    }
+}
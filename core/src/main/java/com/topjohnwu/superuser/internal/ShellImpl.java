@@ -27,55 +27,79 @@ import com.topjohnwu.superuser.Shell;
 import com.topjohnwu.superuser.ShellUtils;
 
 import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 class ShellImpl extends Shell {
+    private static final String TAG = "SHELLIMPL";
+    private static final int MAX_PIPELINE_JOBS = 64;
+
     private volatile int status;
 
     private final Process process;
+    // The command used to start the shell, if known
+    @Nullable String[] command;
+    long spawnTime = -1;
+    long checkTime;
+    @Nullable private final Metrics metrics;
+    private final boolean pipeline;
     private final NoCloseOutputStream STDIN;
     private final NoCloseInputStream STDOUT;
     private final NoCloseInputStream STDERR;
-
-    // Guarded by scheduleLock
-    private final ReentrantLock scheduleLock = new ReentrantLock();
-    private final Condition idle = scheduleLock.newCondition();
-    private final ArrayDeque<Task> tasks = new ArrayDeque<>();
-    private boolean isRunningTask = false;
+    private final JobRunner runner;
+    // Guarded by this
+    private boolean inSync = false;
+
+    // The builder used to replace the shell when it dies, if enabled
+    @Nullable volatile BuilderImpl respawnBuilder;
+    volatile boolean main = false;
+    volatile boolean pooled = false;
+    private volatile boolean closed = false;
+    // Creates the shell replacing this dead shell, only once
+    private final AtomicReference<FutureTask<ShellImpl>> respawn = new AtomicReference<>();
+    @Nullable private volatile ShellImpl successor;
+
+    private final TaskQueue tasks = new TaskQueue();
+    // Whether a thread owns the shell and is running tasks. Only the owner removes tasks.
+    private final AtomicBoolean isRunningTask = new AtomicBoolean(false);
+    private volatile long idleSince = System.nanoTime();
+    // Only used to wait for the shell to become idle
+    private final ReentrantLock idleLock = new ReentrantLock();
+    private final Condition idle = idleLock.newCondition();
 
     private static final class SyncTask implements Task {
 
-        private final Condition condition;
-        private boolean set = false;
-
-        SyncTask(Condition c) {
-            condition = c;
-        }
+        private final Thread thread = Thread.currentThread();
+        private volatile boolean set = false;
 
         void signal() {
             set = true;
-            condition.signal();
+            LockSupport.unpark(thread);
         }
 
         void await() {
+            boolean interrupted = false;
             while (!set) {
-                try {
-                    condition.await();
-                } catch (InterruptedException ignored) {}
+                LockSupport.park(this);
+                if (Thread.interrupted())
+                    interrupted = true;
             }
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
 
         @Override
@@ -96,7 +120,7 @@ class ShellImpl extends Shell {
         }
     }
 
-    private static class NoCloseOutputStream extends FilterOutputStream {
+    static class NoCloseOutputStream extends FilterOutputStream {
 
         NoCloseOutputStream(@NonNull OutputStream out) {
             super((out instanceof BufferedOutputStream) ? out : new BufferedOutputStream(out));
@@ -120,16 +144,22 @@ class ShellImpl extends Shell {
     ShellImpl(BuilderImpl builder, Process proc) throws IOException {
         status = UNKNOWN;
         process = proc;
+        pipeline = builder.hasFlags(FLAG_PIPELINE_JOBS);
         STDIN = new NoCloseOutputStream(proc.getOutputStream());
         STDOUT = new NoCloseInputStream(proc.getInputStream());
         STDERR = new NoCloseInputStream(proc.getErrorStream());
+        metrics = builder.metrics;
+        runner = new JobRunner(STDIN, proc.getInputStream(), proc.getErrorStream(),
+                this::died, this, metrics);
 
         // Shell checks might get stuck indefinitely
         FutureTask<Integer> check = new FutureTask<>(this::shellCheck);
+        long start = System.nanoTime();
         EXECUTOR.execute(check);
         try {
             try {
                 status = check.get(builder.timeout, TimeUnit.SECONDS);
+                checkTime = System.nanoTime() - start;
             } catch (ExecutionException e) {
                 Throwable cause = e.getCause();
                 if (cause instanceof IOException) {
@@ -161,25 +191,23 @@ class ShellImpl extends Shell {
         ShellUtils.cleanInputStream(STDERR);
 
         int status = NON_ROOT_SHELL;
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(STDOUT))) {
 
-            STDIN.write(("echo SHELL_TEST\n").getBytes(UTF_8));
+        STDIN.write(("echo SHELL_TEST\n").getBytes(UTF_8));
+        STDIN.flush();
+        String s = runner.readLine();
+        if (TextUtils.isEmpty(s) || !s.contains("SHELL_TEST"))
+            throw new IOException("Created process is not a shell");
+
+        STDIN.write(("id\n").getBytes(UTF_8));
+        STDIN.flush();
+        s = runner.readLine();
+        if (!TextUtils.isEmpty(s) && s.contains("uid=0")) {
+            status = ROOT_SHELL;
+            Utils.setConfirmedRootState(true);
+            // noinspection ConstantConditions
+            String cwd = ShellUtils.escapedString(System.getProperty("user.dir"));
+            STDIN.write(("cd " + cwd + "\n").getBytes(UTF_8));
             STDIN.flush();
-            String s = br.readLine();
-            if (TextUtils.isEmpty(s) || !s.contains("SHELL_TEST"))
-                throw new IOException("Created process is not a shell");
-
-            STDIN.write(("id\n").getBytes(UTF_8));
-            STDIN.flush();
-            s = br.readLine();
-            if (!TextUtils.isEmpty(s) && s.contains("uid=0")) {
-                status = ROOT_SHELL;
-                Utils.setConfirmedRootState(true);
-                // noinspection ConstantConditions
-                String cwd = ShellUtils.escapedString(System.getProperty("user.dir"));
-                STDIN.write(("cd " + cwd + "\n").getBytes(UTF_8));
-                STDIN.flush();
-            }
         }
         return status;
     }
@@ -192,25 +220,108 @@ class ShellImpl extends Shell {
         process.destroy();
     }
 
+    private void died() {
+        release();
+        onDied();
+    }
+
+    /**
+     * Called when the shell is found dead. Start creating the new shell right away,
+     * so that jobs can be replayed as soon as possible.
+     */
+    void onDied() {
+        if (respawnBuilder != null && !closed)
+            EXECUTOR.execute(this::successor);
+    }
+
+    /**
+     * @return the shell replacing this dead shell, or null if not available.
+     */
+    @Nullable
+    private ShellImpl successor() {
+        FutureTask<ShellImpl> task = respawn.get();
+        if (task == null) {
+            if (respawnBuilder == null || closed)
+                return null;
+            // Create the shell without holding any lock, other threads wait for the result
+            FutureTask<ShellImpl> t = new FutureTask<>(this::respawn);
+            if (respawn.compareAndSet(null, t))
+                t.run();
+            task = respawn.get();
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            Utils.ex(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private ShellImpl respawn() {
+        // Replacements of the main shell and shells in the pool become the main shell
+        ShellImpl next = (main || pooled) ? MainShell.get() : respawnBuilder.respawn(command);
+        Utils.log(TAG, "shell respawned");
+        successor = next;
+        if (closed && !next.main)
+            next.close();
+        return next;
+    }
+
+    /**
+     * Replay the task in the new shell if possible, otherwise the task fails.
+     * Must only be called after the shell is dead.
+     */
+    private void replayOrFail(Task task) {
+        if (task instanceof JobPipeline) {
+            for (JobTask job : ((JobPipeline) task).jobs)
+                replayOrFail(job);
+            return;
+        }
+        if (task instanceof JobTask && ((JobTask) task).canReplay()) {
+            ShellImpl next = successor();
+            if (next != null) {
+                Utils.log(TAG, "replay job in the new shell");
+                try {
+                    next.execTask(task);
+                } catch (IOException ignored) { /* JobTask does not throw */ }
+                return;
+            }
+        }
+        task.shellDied();
+    }
+
     @Override
     public boolean waitAndClose(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
         if (status < 0)
             return true;
 
-        scheduleLock.lock();
+        idleLock.lock();
         try {
-            if (isRunningTask && !idle.await(timeout, unit))
-                return false;
-            close();
+            long nanos = unit.toNanos(timeout);
+            // Claim the shell, so no task can start running before it is closed
+            while (!isRunningTask.compareAndSet(false, true)) {
+                if (nanos <= 0)
+                    return false;
+                nanos = idle.awaitNanos(nanos);
+            }
         } finally {
-            scheduleLock.unlock();
+            idleLock.unlock();
         }
 
+        close();
+        // Fail the tasks queued in the meantime, and release the shell
+        processTasks();
         return true;
     }
 
     @Override
     public void close() {
+        closed = true;
+        ShellImpl next = successor;
+        if (next != null && !next.main)
+            next.close();
         if (status < 0)
             return;
         release();
@@ -230,7 +341,7 @@ class ShellImpl extends Shell {
         try {
             process.exitValue();
             // Process is dead, shell is not alive
-            release();
+            died();
             return false;
         } catch (IllegalThreadStateException e) {
             // Process is still running
@@ -240,90 +351,186 @@ class ShellImpl extends Shell {
 
     private synchronized void exec0(@NonNull Task task) throws IOException {
         if (status < 0) {
-            task.shellDied();
+            replayOrFail(task);
             return;
         }
 
-        ShellUtils.cleanInputStream(STDOUT);
-        ShellUtils.cleanInputStream(STDERR);
-        try {
-            STDIN.write('\n');
-            STDIN.flush();
-        } catch (IOException e) {
-            release();
-            task.shellDied();
-            return;
+        if (!inSync) {
+            ShellUtils.cleanInputStream(STDOUT);
+            ShellUtils.cleanInputStream(STDERR);
+            runner.reset();
+            try {
+                STDIN.write('\n');
+                STDIN.flush();
+            } catch (IOException e) {
+                died();
+                replayOrFail(task);
+                return;
+            }
+        }
+
+        if (metrics != null)
+            reportStart(task);
+
+        // Only skip the resync next time if the task is known to end cleanly
+        inSync = false;
+        if (task instanceof JobTask) {
+            inSync = runner.run(Collections.singletonList((JobTask) task));
+        } else if (task instanceof JobPipeline) {
+            inSync = runner.run(((JobPipeline) task).jobs);
+        } else {
+            task.run(STDIN, STDOUT, STDERR);
+        }
+    }
+
+    private void reportStart(Task task) {
+        long now = System.nanoTime();
+        int depth = tasks.size();
+        if (task instanceof JobTask) {
+            JobTask job = (JobTask) task;
+            metrics.onJobStarted(this, depth, now - job.queuedAt);
+        } else if (task instanceof JobPipeline) {
+            for (JobTask job : ((JobPipeline) task).jobs) {
+                metrics.onJobStarted(this, depth, now - job.queuedAt);
+            }
         }
+    }
 
-        task.run(STDIN, STDOUT, STDERR);
+    private void markQueued(Task task) {
+        long now = System.nanoTime();
+        if (task instanceof JobTask) {
+            ((JobTask) task).queuedAt = now;
+        } else if (task instanceof JobPipeline) {
+            for (JobTask job : ((JobPipeline) task).jobs) {
+                job.queuedAt = now;
+            }
+        }
     }
 
     private void processTasks() {
         Task task;
         while ((task = processNextTask(false)) != null) {
+            if (pipeline && task instanceof JobTask)
+                task = collectJobs((JobTask) task);
             try {
                 exec0(task);
-            } catch (IOException ignored) {}
+            } catch (IOException ignored) {
+            } catch (RuntimeException e) {
+                // A raw task failed, the next task will resync the shell
+                Utils.err(TAG, e);
+            }
+        }
+    }
+
+    private Task collectJobs(JobTask first) {
+        ArrayList<JobTask> jobs = null;
+        long input = first.inputLength();
+        if (input < 0 || first.endsBatch())
+            return first;
+        long now = System.nanoTime();
+        TaskQueue.Node n;
+        while ((n = tasks.peek(now)) != null && n.task instanceof JobTask) {
+            // Keep the batch small enough to be written without a helper thread,
+            // and do not let a job wait for jobs with lower priorities
+            JobTask next = (JobTask) n.task;
+            long len = next.inputLength();
+            if (len < 0 || input + len > JobRunner.INLINE_WRITE_LIMIT
+                    || next.getPriority() > first.getPriority())
+                break;
+            if (jobs == null) {
+                jobs = new ArrayList<>();
+                jobs.add(first);
+            }
+            if (jobs.size() == MAX_PIPELINE_JOBS)
+                break;
+            input += len;
+            tasks.remove(n);
+            jobs.add(next);
+            if (next.endsBatch())
+                break;
         }
+        return jobs == null ? first : new JobPipeline(jobs);
     }
 
+    /**
+     * Must only be called by the thread running tasks.
+     */
     @Nullable
     private Task processNextTask(boolean fromExec) {
-        scheduleLock.lock();
-        try {
-            final Task task = tasks.poll();
-            if (task == null) {
-                isRunningTask = false;
-                idle.signalAll();
-                return null;
+        for (;;) {
+            TaskQueue.Node n = tasks.peek(System.nanoTime());
+            if (n == null) {
+                idleSince = System.nanoTime();
+                isRunningTask.set(false);
+                idleLock.lock();
+                try {
+                    idle.signalAll();
+                } finally {
+                    idleLock.unlock();
+                }
+                // A task might be offered right before the flag is cleared
+                if (tasks.isEmpty() || !isRunningTask.compareAndSet(false, true))
+                    return null;
+                continue;
             }
-            if (task instanceof SyncTask) {
-                ((SyncTask) task).signal();
+            if (n.task instanceof SyncTask) {
+                // Hand over the shell to the waiting thread
+                tasks.remove(n);
+                ((SyncTask) n.task).signal();
                 return null;
             }
             if (fromExec) {
-                // Put the task back in front of the queue
-                tasks.offerFirst(task);
-            } else {
-                return task;
+                // Run the task in the background instead
+                EXECUTOR.execute(this::processTasks);
+                return null;
             }
-        } finally {
-            scheduleLock.unlock();
+            tasks.remove(n);
+            return n.task;
         }
-        EXECUTOR.execute(this::processTasks);
-        return null;
     }
 
     @Override
     public void submitTask(@NonNull Task task) {
-        scheduleLock.lock();
-        try {
-            tasks.offer(task);
-            if (!isRunningTask) {
-                isRunningTask = true;
-                EXECUTOR.execute(this::processTasks);
-            }
-        } finally {
-            scheduleLock.unlock();
-        }
+        if (metrics != null)
+            markQueued(task);
+        tasks.offer(task);
+        if (isRunningTask.compareAndSet(false, true))
+            EXECUTOR.execute(this::processTasks);
     }
 
     @Override
     public void execTask(@NonNull Task task) throws IOException {
-        scheduleLock.lock();
+        if (metrics != null)
+            markQueued(task);
+        if (!isRunningTask.compareAndSet(false, true)) {
+            SyncTask sync = new SyncTask();
+            // Wait in the lane of the actual task
+            tasks.offer(sync, task instanceof JobTask
+                    ? ((JobTask) task).getPriority() : Job.PRIORITY_DEFAULT);
+            if (isRunningTask.compareAndSet(false, true))
+                EXECUTOR.execute(this::processTasks);
+            // Wait until it's our turn
+            sync.await();
+        }
         try {
-            if (isRunningTask) {
-                SyncTask sync = new SyncTask(scheduleLock.newCondition());
-                tasks.offer(sync);
-                // Wait until it's our turn
-                sync.await();
-            }
-            isRunningTask = true;
+            exec0(task);
         } finally {
-            scheduleLock.unlock();
+            processNextTask(true);
         }
-        exec0(task);
-        processNextTask(true);
+    }
+
+    /**
+     * @return the number of tasks that are either running or waiting in the queue.
+     */
+    int getLoad() {
+        return isRunningTask.get() ? tasks.size() + 1 : 0;
+    }
+
+    /**
+     * @return the time in nanoseconds since the shell became idle, or -1 if it is busy.
+     */
+    long getIdleTime() {
+        return isRunningTask.get() ? -1 : System.nanoTime() - idleSince;
     }
 
     @NonNull
@@ -331,4 +538,10 @@ class ShellImpl extends Shell {
     public Job newJob() {
         return new ShellJob(this);
     }
+
+    @NonNull
+    @Override
+    public Batch newBatch() {
+        return new ShellBatch(this);
+    }
 }
@@ -16,8 +16,6 @@
 
 package com.topjohnwu.superuser.internal;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
-
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,6 +26,13 @@ interface ShellInputSource extends Closeable {
 
     void serve(OutputStream out) throws IOException;
 
+    /**
+     * @return the maximum number of bytes this source will write, or -1 if unknown.
+     */
+    default long length() {
+        return -1;
+    }
+
     @Override
     default void close() {}
 }
@@ -52,18 +57,3 @@ class InputStreamSource implements ShellInputSource {
         } catch (IOException ignored) {}
     }
 }
-
-class CommandSource implements ShellInputSource {
-
-    private final String[] cmd;
-    CommandSource(String[] cmd) { this.cmd = cmd; }
-
-    @Override
-    public void serve(OutputStream out) throws IOException {
-        for (String command : cmd) {
-            out.write(command.getBytes(UTF_8));
-            out.write('\n');
-            Utils.log(TAG, command);
-        }
-    }
-}
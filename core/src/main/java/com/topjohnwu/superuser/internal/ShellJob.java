@@ -20,6 +20,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.topjohnwu.superuser.Shell;
+import com.topjohnwu.superuser.ShellFuture;
 
 import java.io.IOException;
 import java.util.concurrent.Executor;
@@ -38,8 +39,9 @@ class ShellJob extends JobTask {
     @Override
     public Shell.Result exec() {
         ResultHolder holder = new ResultHolder();
-        callback = holder;
-        callbackExecutor = null;
+        setCallback(null, holder);
+        if (fromCache(shell))
+            return holder.await();
         try {
             shell.execTask(this);
         } catch (IOException ignored) { /* JobTask does not throw */ }
@@ -48,18 +50,28 @@ class ShellJob extends JobTask {
 
     @Override
     public void submit(@Nullable Executor executor, @Nullable Shell.ResultCallback cb) {
-        callbackExecutor = executor;
-        callback = cb;
-        shell.submitTask(this);
+        setCallback(executor, cb);
+        if (!fromCache(shell))
+            shell.submitTask(this);
+    }
+
+    @NonNull
+    @Override
+    public ShellFuture<Shell.Result> async() {
+        JobFuture future = new JobFuture(this);
+        setCallback(null, future);
+        if (!fromCache(shell))
+            shell.submitTask(this);
+        return future;
     }
 
     @NonNull
     @Override
     public Future<Shell.Result> enqueue() {
-        ResultFuture future = new ResultFuture();
-        callback = future;
-        callbackExecutor = null;
-        shell.submitTask(this);
+        ResultFuture future = new ResultFuture(this);
+        setCallback(null, future);
+        if (!fromCache(shell))
+            shell.submitTask(this);
         return future;
     }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import static com.topjohnwu.superuser.Shell.CALLBACK_EXECUTOR;
+import static com.topjohnwu.superuser.Shell.EXECUTOR;
+
+import androidx.annotation.GuardedBy;
+import androidx.annotation.NonNull;
+
+import com.topjohnwu.superuser.NoShellException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+class ShellPool {
+
+    private static final String TAG = "SHELLPOOL";
+
+    private final BuilderImpl builder;
+    private final long keepAlive;
+
+    // Shells in the pool, excluding the main shell
+    @GuardedBy("this")
+    private final ArrayList<ShellImpl> shells = new ArrayList<>();
+    @GuardedBy("this")
+    private int spawning = 0;
+    @GuardedBy("this")
+    private boolean evictScheduled = false;
+
+    ShellPool(BuilderImpl b) {
+        builder = b;
+        keepAlive = TimeUnit.SECONDS.toNanos(b.poolKeepAlive);
+        synchronized (this) {
+            // The main shell counts as one
+            for (int i = 1; i < builder.poolMin; ++i) {
+                spawn();
+            }
+        }
+    }
+
+    /**
+     * Pick the least busy shell in the pool. If all shells are busy, a new shell will
+     * be created in the background for future jobs.
+     */
+    @NonNull
+    ShellImpl select(@NonNull ShellImpl main) {
+        ShellImpl best = main;
+        int load = main.getLoad();
+        if (load == 0)
+            return main;
+        synchronized (this) {
+            Iterator<ShellImpl> it = shells.iterator();
+            while (it.hasNext()) {
+                ShellImpl s = it.next();
+                if (!s.isAlive()) {
+                    it.remove();
+                    continue;
+                }
+                int l = s.getLoad();
+                if (l < load) {
+                    best = s;
+                    load = l;
+                    if (l == 0)
+                        break;
+                }
+            }
+            if (load != 0 && shells.size() + spawning + 1 < builder.poolMax) {
+                spawn();
+            }
+        }
+        return best;
+    }
+
+    @GuardedBy("this")
+    private void spawn() {
+        ++spawning;
+        EXECUTOR.execute(() -> {
+            ShellImpl shell = null;
+            try {
+                shell = builder.build(false);
+                shell.pooled = true;
+                Utils.log(TAG, "new shell in pool");
+            } catch (NoShellException e) {
+                Utils.ex(e);
+            }
+            synchronized (this) {
+                --spawning;
+                if (shell != null)
+                    shells.add(shell);
+                scheduleEvict();
+            }
+        });
+    }
+
+    @GuardedBy("this")
+    private void scheduleEvict() {
+        if (evictScheduled || shells.size() + 1 <= builder.poolMin)
+            return;
+        evictScheduled = true;
+        ShellTimer.schedule(() -> CALLBACK_EXECUTOR.execute(this::evict),
+                TimeUnit.NANOSECONDS.toMillis(keepAlive));
+    }
+
+    private void evict() {
+        ArrayList<ShellImpl> closing = new ArrayList<>();
+        synchronized (this) {
+            evictScheduled = false;
+            Iterator<ShellImpl> it = shells.iterator();
+            while (it.hasNext() && shells.size() + 1 > builder.poolMin) {
+                ShellImpl s = it.next();
+                long idle = s.getIdleTime();
+                if (!s.isAlive() || idle >= keepAlive) {
+                    it.remove();
+                    closing.add(s);
+                }
+            }
+            scheduleEvict();
+        }
+        for (ShellImpl s : closing) {
+            boolean closed;
+            try {
+                // Only close the shell if it is still idle
+                closed = s.waitAndClose(0, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                closed = false;
+            }
+            if (closed) {
+                Utils.log(TAG, "close idle shell in pool");
+            } else {
+                synchronized (this) {
+                    shells.add(s);
+                    scheduleEvict();
+                }
+            }
+        }
+    }
+}
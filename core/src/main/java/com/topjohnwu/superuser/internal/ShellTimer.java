@@ -0,0 +1,55 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import android.os.Build;
+
+import androidx.annotation.RestrictTo;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A background thread running delayed internal tasks, such as job timeouts.
+ * <p>
+ * The main looper cannot be used for these tasks, as it could be blocked by the very job
+ * waiting for the timeout. Tasks must be short and never block.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class ShellTimer {
+
+    private static final ScheduledThreadPoolExecutor timer;
+
+    static {
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "libsu-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setKeepAliveTime(30, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+        if (Build.VERSION.SDK_INT >= 21)
+            timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private ShellTimer() {}
+
+    public static ScheduledFuture<?> schedule(Runnable r, long delayMs) {
+        return timer.schedule(r, delayMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import static com.topjohnwu.superuser.Shell.CALLBACK_EXECUTOR;
+
+import androidx.annotation.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Periodically checks whether the watched shells are still alive, so that dead shells
+ * are noticed even when they are idle. Stops checking once no shells are left to watch.
+ */
+final class ShellWatchdog {
+
+    private static final long INTERVAL_MS = 1000;
+
+    @GuardedBy("shells")
+    private static final ArrayList<ShellImpl> shells = new ArrayList<>();
+    @GuardedBy("shells")
+    private static boolean scheduled = false;
+
+    private ShellWatchdog() {}
+
+    static void watch(ShellImpl shell) {
+        synchronized (shells) {
+            shells.add(shell);
+            schedule();
+        }
+    }
+
+    @GuardedBy("shells")
+    private static void schedule() {
+        if (scheduled || shells.isEmpty())
+            return;
+        scheduled = true;
+        ShellTimer.schedule(() -> CALLBACK_EXECUTOR.execute(ShellWatchdog::check), INTERVAL_MS);
+    }
+
+    private static void check() {
+        synchronized (shells) {
+            scheduled = false;
+            Iterator<ShellImpl> it = shells.iterator();
+            while (it.hasNext()) {
+                // The shell handles its own death when it is found dead
+                if (!it.next().isAlive())
+                    it.remove();
+            }
+            schedule();
+        }
+    }
+}
@@ -17,82 +17,412 @@
 package com.topjohnwu.superuser.internal;
 
 import static com.topjohnwu.superuser.internal.JobTask.END_UUID;
-import static com.topjohnwu.superuser.internal.JobTask.UUID_LEN;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
-import java.io.BufferedReader;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.util.List;
-import java.util.concurrent.Callable;
 
-abstract class StreamGobbler<T> implements Callable<T> {
+/**
+ * Reads lines from a stream of the shell directly on bytes.
+ * <p>
+ * A gobbler is created once per stream and reused for every job. Lines are only decoded
+ * into strings when they are actually delivered to a list. Parsing is incremental:
+ * {@link #fill()} reads data into the buffer, and {@link #step()} processes whatever data
+ * is available without blocking, so a single thread can serve multiple streams.
+ */
+class StreamGobbler {
 
     private static final String TAG = "SHELLOUT";
+    private static final byte[] END_MARKER = END_UUID.getBytes(UTF_8);
+    private static final int NO_RESULT_CODE = 1;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final int STATE_LINES = 0;
+    private static final int STATE_CODE = 1;
+    private static final int STATE_BINARY = 2;
+    private static final int STATE_DONE = 3;
+
+    private final InputStream in;
+    private InputStream src;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    // Unconsumed data is buf[pos, limit), and buf[pos, scan) contains no new lines
+    private int pos = 0;
+    private int scan = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    // The last line ended with '\r', so a following '\n' belongs to it
+    private boolean skipLF = false;
+
+    // Bounds of the line found by findLine()
+    private int lineStart;
+    private int lineEnd;
 
-    protected final InputStream in;
-    protected final List<String> list;
+    // States of the current job
+    @Nullable private LineSink sink;
+    @Nullable private BinarySink binSink;
+    private boolean readCode;
+    private int state = STATE_DONE;
+    private int code;
+    private long bytes;
+    private int lines;
+    @Nullable private Throwable error;
 
-    StreamGobbler(InputStream in, List<String> list) {
+    /**
+     * @param in the stream of the shell.
+     * @param src the stream actually read from, usually the file stream wrapped in {@code in}.
+     */
+    StreamGobbler(InputStream in, InputStream src) {
         this.in = in;
-        this.list = list;
+        this.src = src;
+    }
+
+    /**
+     * Discard all buffered data.
+     */
+    void reset() {
+        pos = scan = limit = 0;
+        skipLF = false;
+        shrink();
+    }
+
+    /**
+     * Release the memory used by a long line once it is consumed.
+     */
+    private void shrink() {
+        int remaining = limit - pos;
+        if (buf.length > BUFFER_SIZE && remaining < BUFFER_SIZE) {
+            byte[] b = new byte[BUFFER_SIZE];
+            System.arraycopy(buf, pos, b, 0, remaining);
+            buf = b;
+            limit = remaining;
+            scan -= pos;
+            pos = 0;
+        }
     }
 
-    private boolean outputAndCheck(String line) {
-        if (line == null)
+    /**
+     * Read data from the stream into the buffer. Blocks only if no data is available.
+     * @return false if the stream reached EOF.
+     */
+    boolean fill() {
+        if (eof)
             return false;
+        shrink();
+        if (pos != 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            scan -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            byte[] b = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, b, 0, limit);
+            buf = b;
+        }
+        int read = read();
+        if (read < 0 && src != in) {
+            // The process might have exited and its remaining outputs are
+            // moved into the wrapping stream, read from it instead
+            src = in;
+            read = read();
+        }
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
 
-        int len = line.length();
-        boolean end = line.startsWith(END_UUID, len - UUID_LEN);
-        if (end) {
-            if (len == UUID_LEN)
-                return false;
-            line = line.substring(0, len - UUID_LEN);
+    private int read() {
+        try {
+            return src.read(buf, limit, buf.length - limit);
+        } catch (IOException e) {
+            Utils.ex(e);
+            return -1;
         }
-        if (list != null) {
-            list.add(line);
-            Utils.log(TAG, line);
+    }
+
+    void setEof() {
+        eof = true;
+    }
+
+    boolean isEof() {
+        return eof;
+    }
+
+    /**
+     * @return true if the stream is still open and all buffered data is consumed.
+     */
+    boolean isDrained() {
+        return !eof && pos == limit;
+    }
+
+    /**
+     * Locate the next complete line in the buffer and store its bounds.
+     * Same as {@link java.io.BufferedReader#readLine()}, a line is terminated by
+     * '\n', '\r', or "\r\n".
+     */
+    private boolean findLine() {
+        if (skipLF && pos < limit) {
+            skipLF = false;
+            if (buf[pos] == '\n') {
+                ++bytes;
+                ++pos;
+                scan = Math.max(scan, pos);
+            }
+        }
+        for (int i = scan; i < limit; ++i) {
+            byte b = buf[i];
+            if (b == '\n' || b == '\r') {
+                bytes += i + 1 - pos;
+                lineStart = pos;
+                lineEnd = i;
+                pos = scan = i + 1;
+                skipLF = b == '\r';
+                return true;
+            }
         }
-        return !end;
+        scan = limit;
+        return false;
     }
 
-    protected String process(boolean res) throws IOException {
-        BufferedReader br = new BufferedReader(new InputStreamReader(in, UTF_8));
-        String line;
-        do {
-            line = br.readLine();
-        } while (outputAndCheck(line));
-        return res ? br.readLine() : null;
+    private boolean endsWithMarker(int start, int end) {
+        int off = end - END_MARKER.length;
+        if (off < start)
+            return false;
+        for (int i = 0; i < END_MARKER.length; ++i) {
+            if (buf[off + i] != END_MARKER[i])
+                return false;
+        }
+        return true;
     }
 
-    static class OUT extends StreamGobbler<Integer> {
+    private void deliver(int start, int end) {
+        ++lines;
+        if (sink != null) {
+            try {
+                sink.onLine(buf, start, end - start);
+            } catch (Throwable t) {
+                // Never leave the outputs half consumed, or the shell will go out of sync
+                fail(t);
+                sink = null;
+                return;
+            }
+            if (Utils.vLog())
+                Utils.log(TAG, new String(buf, start, end - start, UTF_8));
+        }
+    }
+
+    private void fail(Throwable t) {
+        Utils.err(TAG, t);
+        if (error == null)
+            error = t;
+    }
 
-        private static final int NO_RESULT_CODE = 1;
+    /**
+     * Start processing outputs of a new job.
+     * @param sink the destination of the lines.
+     * @param readCode whether the line after the end marker is the return code.
+     */
+    void begin(@Nullable LineSink sink, boolean readCode) {
+        this.sink = sink;
+        this.readCode = readCode;
+        state = STATE_LINES;
+        code = NO_RESULT_CODE;
+        bytes = 0;
+        lines = 0;
+        error = null;
+    }
 
-        OUT(InputStream in, List<String> list) { super(in, list); }
+    /**
+     * Start passing outputs of a new job as raw bytes. The outputs end with a line
+     * containing only the end marker, which is the last data sent to the stream.
+     * @param sink the destination of the data.
+     */
+    void beginBinary(@NonNull BinarySink sink) {
+        binSink = sink;
+        skipLF = false;
+        state = STATE_BINARY;
+        code = NO_RESULT_CODE;
+        bytes = 0;
+        lines = 0;
+        error = null;
+    }
 
-        @Override
-        public Integer call() throws Exception {
-            String codeStr = process(true);
+    private void write(int end) {
+        if (end <= pos)
+            return;
+        bytes += end - pos;
+        if (binSink != null) {
             try {
-                int code = codeStr == null ? NO_RESULT_CODE : Integer.parseInt(codeStr);
+                binSink.write(buf, pos, end - pos);
+            } catch (IOException e) {
+                Utils.err(e);
+                // Keep consuming the outputs, but drop all data
+                binSink = null;
+            } catch (Throwable t) {
+                fail(t);
+                binSink = null;
+            }
+        }
+        pos = scan = end;
+    }
+
+    /**
+     * Data on the stream are only checked for the end marker at the end of the buffer.
+     * Anything before the last marker line's worth of bytes is passed to the sink directly.
+     */
+    private boolean stepBinary() {
+        int tail = limit - END_MARKER.length - 1;
+        if (tail >= pos && buf[limit - 1] == '\n' && endsWithMarker(tail, limit - 1)) {
+            write(tail);
+            bytes += limit - pos;
+            pos = scan = limit;
+        } else if (eof) {
+            write(limit);
+        } else {
+            write(tail);
+            return false;
+        }
+        binSink = null;
+        state = STATE_DONE;
+        return true;
+    }
+
+    /**
+     * Process data in the buffer without blocking.
+     * @return true if all outputs of the current job are processed.
+     */
+    boolean step() {
+        if (state == STATE_BINARY)
+            return stepBinary();
+        while (state != STATE_DONE) {
+            if (!findLine()) {
+                if (!eof)
+                    return false;
+                // The stream is closed, flush the remaining data as the last line
+                if (state == STATE_LINES && pos != limit)
+                    deliver(pos, limit);
+                bytes += limit - pos;
+                pos = scan = limit;
+                state = STATE_DONE;
+                break;
+            }
+            if (state == STATE_LINES) {
+                int end = lineEnd;
+                if (endsWithMarker(lineStart, end)) {
+                    end -= END_MARKER.length;
+                    if (end != lineStart)
+                        deliver(lineStart, end);
+                    state = readCode ? STATE_CODE : STATE_DONE;
+                } else {
+                    deliver(lineStart, end);
+                }
+            } else {
+                code = parseCode();
                 Utils.log(TAG, "(exit code: " + code + ")");
-                return code;
-            } catch (NumberFormatException e) {
-                return NO_RESULT_CODE;
+                state = STATE_DONE;
             }
         }
+        sink = null;
+        shrink();
+        return true;
     }
 
-    static class ERR extends StreamGobbler<Void> {
+    /**
+     * Block until all outputs of the current job are processed.
+     */
+    void finish() {
+        while (!step()) {
+            fill();
+        }
+    }
+
+    /**
+     * @return the return code of the current job.
+     */
+    int getCode() {
+        return code;
+    }
+
+    /**
+     * @return the number of bytes consumed for the current job.
+     */
+    long getBytes() {
+        return bytes;
+    }
 
-        ERR(InputStream in, List<String> list) { super(in, list); }
+    /**
+     * @return the number of lines delivered for the current job.
+     */
+    int getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the first exception thrown by the sink of the current job.
+     */
+    @Nullable
+    Throwable getError() {
+        return error;
+    }
+
+    private int parseCode() {
+        if (lineStart == lineEnd)
+            return NO_RESULT_CODE;
+        int code = 0;
+        for (int i = lineStart; i < lineEnd; ++i) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || code > 0xFFFF)
+                return NO_RESULT_CODE;
+            code = code * 10 + digit;
+        }
+        return code;
+    }
+
+    /**
+     * Read a single line and decode it. Blocks until a line is available.
+     * @return the line, or null if the stream reached EOF.
+     */
+    @Nullable
+    String readLine() {
+        while (!findLine()) {
+            if (!fill())
+                return null;
+        }
+        return new String(buf, lineStart, lineEnd - lineStart, UTF_8);
+    }
+
+    interface LineSink {
+        /**
+         * Called for every line of output. The data is only valid during this call.
+         */
+        void onLine(@NonNull byte[] buf, int off, int len);
+    }
+
+    interface BinarySink {
+        /**
+         * Called for every chunk of output. The data is only valid during this call.
+         */
+        void write(@NonNull byte[] buf, int off, int len) throws IOException;
+    }
+
+    static class ListSink implements LineSink {
+
+        private final List<String> list;
+
+        ListSink(List<String> list) {
+            this.list = list;
+        }
 
         @Override
-        public Void call() throws Exception {
-            process(false);
-            return null;
+        public void onLine(@NonNull byte[] buf, int off, int len) {
+            list.add(new String(buf, off, len, UTF_8));
         }
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import static android.system.OsConstants.EINTR;
+import static android.system.OsConstants.POLLIN;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructPollfd;
+
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Waits for data on STDOUT and STDERR of the shell with poll(2).
+ */
+@RequiresApi(21)
+class StreamPoller {
+
+    static final int OUT = 1;
+    static final int ERR = 2;
+
+    private final StructPollfd outFd;
+    private final StructPollfd errFd;
+    private final StructPollfd[] outOnly;
+    private final StructPollfd[] errOnly;
+    private final StructPollfd[] both;
+
+    private StreamPoller(FileDescriptor out, FileDescriptor err) {
+        outFd = new StructPollfd();
+        outFd.fd = out;
+        outFd.events = (short) POLLIN;
+        errFd = new StructPollfd();
+        errFd.fd = err;
+        errFd.events = (short) POLLIN;
+        outOnly = new StructPollfd[] { outFd };
+        errOnly = new StructPollfd[] { errFd };
+        both = new StructPollfd[] { outFd, errFd };
+    }
+
+    /**
+     * @return a poller for the streams, or null if the streams are not backed by file descriptors.
+     */
+    @Nullable
+    static StreamPoller create(InputStream out, InputStream err) {
+        if (out instanceof FileInputStream && err instanceof FileInputStream) {
+            try {
+                return new StreamPoller(
+                        ((FileInputStream) out).getFD(), ((FileInputStream) err).getFD());
+            } catch (IOException e) {
+                Utils.ex(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Block until any of the requested streams can be read without blocking.
+     * Errors and hang ups are also reported as readable, so that the next read
+     * will return the error or EOF.
+     * @param streams a combination of {@link #OUT} and {@link #ERR}.
+     * @return the streams that are ready.
+     */
+    int poll(int streams) throws IOException {
+        StructPollfd[] fds = streams == OUT ? outOnly : (streams == ERR ? errOnly : both);
+        outFd.revents = 0;
+        errFd.revents = 0;
+        for (;;) {
+            try {
+                Os.poll(fds, -1);
+                break;
+            } catch (ErrnoException e) {
+                if (e.errno != EINTR)
+                    throw new IOException(e);
+            }
+        }
+        int ready = 0;
+        if ((streams & OUT) != 0 && outFd.revents != 0)
+            ready |= OUT;
+        if ((streams & ERR) != 0 && errFd.revents != 0)
+            ready |= ERR;
+        return ready;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2024 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import static com.topjohnwu.superuser.Shell.Job.PRIORITY_BULK;
+import static com.topjohnwu.superuser.Shell.Job.PRIORITY_DEFAULT;
+
+import androidx.annotation.Nullable;
+
+import com.topjohnwu.superuser.Shell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A queue of tasks with one FIFO lane per job priority.
+ * <p>
+ * Tasks are taken from the lane with the highest priority. To prevent starvation, the
+ * priority of a task is raised by one level for every {@link #AGING_NS} it spent waiting.
+ * <p>
+ * Tasks can be offered from any thread without locking, but only a single thread at
+ * a time is allowed to peek and remove tasks.
+ */
+class TaskQueue {
+
+    static final long AGING_NS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    static final class Node {
+        final Shell.Task task;
+        private final int lane;
+        private final long time;
+
+        private Node(Shell.Task task, int lane, long time) {
+            this.task = task;
+            this.lane = lane;
+            this.time = time;
+        }
+    }
+
+    private final List<ConcurrentLinkedQueue<Node>> lanes = new ArrayList<>(PRIORITY_BULK + 1);
+    private final AtomicInteger size = new AtomicInteger();
+
+    TaskQueue() {
+        for (int i = 0; i <= PRIORITY_BULK; ++i) {
+            lanes.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    void offer(Shell.Task task, int priority) {
+        lanes.get(priority).offer(new Node(task, priority, System.nanoTime()));
+        size.incrementAndGet();
+    }
+
+    void offer(Shell.Task task) {
+        offer(task, task instanceof JobTask ? ((JobTask) task).getPriority() : PRIORITY_DEFAULT);
+    }
+
+    /**
+     * @return the next task to run, or null if the queue is empty.
+     */
+    @Nullable
+    Node peek(long now) {
+        Node next = null;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < lanes.size(); ++i) {
+            Node n = lanes.get(i).peek();
+            if (n == null)
+                continue;
+            long p = i - (now - n.time) / AGING_NS;
+            if (p < best) {
+                best = p;
+                next = n;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Remove a node returned by {@link #peek(long)}.
+     */
+    void remove(Node n) {
+        // Only one thread removes nodes, so the head of the lane is still n
+        lanes.get(n.lane).poll();
+        size.decrementAndGet();
+    }
+
+    boolean isEmpty() {
+        for (ConcurrentLinkedQueue<Node> lane : lanes) {
+            if (!lane.isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    int size() {
+        return size.get();
+    }
+}
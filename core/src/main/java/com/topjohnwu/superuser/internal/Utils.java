@@ -24,15 +24,24 @@ import android.os.Process;
 import android.util.ArraySet;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
 import androidx.annotation.RestrictTo;
 
 import com.topjohnwu.superuser.Shell;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -150,6 +159,48 @@ public final class Utils {
         return total;
     }
 
+    /**
+     * Get the file stream wrapped in buffers, so that it can be polled directly
+     * without data being hidden in the buffers.
+     */
+    static InputStream unwrapStream(InputStream in) {
+        try {
+            Field field = FilterInputStream.class.getDeclaredField("in");
+            field.setAccessible(true);
+            InputStream s = in;
+            while (s instanceof BufferedInputStream) {
+                s = (InputStream) field.get(s);
+            }
+            if (s instanceof FileInputStream)
+                return s;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ex(e);
+        }
+        return in;
+    }
+
+    /**
+     * Get the channel of the file stream wrapped in buffers, so that data can be
+     * transferred to it directly. The buffers have to be flushed before using the channel.
+     */
+    @Nullable
+    static FileChannel unwrapChannel(OutputStream out) {
+        try {
+            Field field = FilterOutputStream.class.getDeclaredField("out");
+            field.setAccessible(true);
+            OutputStream s = out;
+            while (s instanceof BufferedOutputStream || s instanceof ShellImpl.NoCloseOutputStream
+                    || s instanceof JobRunner.CountingOutputStream) {
+                s = (OutputStream) field.get(s);
+            }
+            if (s instanceof FileOutputStream)
+                return ((FileOutputStream) s).getChannel();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ex(e);
+        }
+        return null;
+    }
+
     static <E> Set<E> newArraySet() {
         if (Build.VERSION.SDK_INT >= 23) {
             return new ArraySet<>();
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2023 John "topjohnwu" Wu
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.topjohnwu.superuser.internal;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RestrictTo;
+
+import com.topjohnwu.superuser.Shell;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A library of shell functions used by I/O operations.
+ * <p>
+ * The library is sent lazily together with the operations using it, until one of them
+ * succeeds, so hot operations only send a short function call instead of a full command
+ * line. The version is part of every function name: if the functions of this version are
+ * missing from the shell, the call fails with exit code 127, which can be passed to
+ * {@link #invalidate(Shell)} to install the library again.
+ */
+@RestrictTo(RestrictTo.Scope.LIBRARY)
+public final class ShellFunctions {
+
+    static final int VERSION = 1;
+    public static final int NOT_FOUND = 127;
+
+    // Read:      __lsu1_r <path> <ibs> <skip> <count> <obs>
+    // Write:     __lsu1_w <path> <len> [conv]
+    // Seek+Write __lsu1_ws <path> <len> <off> [conv]
+    // Truncate:  __lsu1_t <path> <len>
+    // New file:  __lsu1_cf <path>
+    // Delete:    __lsu1_rm <path>
+    // Set mtime: __lsu1_mt <path> <date>
+    private static final String LIBRARY =
+            "__lsu1_r(){ dd if=\"$1\" ibs=$2 skip=$3 count=$4 obs=$5 2>/dev/null;echo >&2;}\n" +
+            "__lsu1_w(){ dd of=\"$1\" bs=$2 count=1 $3 2>/dev/null;echo;}\n" +
+            "__lsu1_ws(){ dd of=\"$1\" ibs=$2 count=1 obs=$3 seek=1 $4 2>/dev/null;echo;}\n" +
+            "__lsu1_t(){ dd of=\"$1\" bs=$2 seek=1 count=0 2>/dev/null;echo;}\n" +
+            "__lsu1_cf(){ [ ! -e \"$1\" ] && echo -n >\"$1\";}\n" +
+            "__lsu1_rm(){ rm -f \"$1\" || rmdir -f \"$1\";}\n" +
+            "__lsu1_mt(){ [ -e \"$1\" ] && touch -t $2 \"$1\";}\n";
+
+    static final String READ = "__lsu1_r ";
+    static final String WRITE = "__lsu1_w ";
+    static final String SEEK_WRITE = "__lsu1_ws ";
+    static final String TRUNCATE = "__lsu1_t ";
+    public static final String CREATE = "__lsu1_cf ";
+    public static final String DELETE = "__lsu1_rm ";
+    public static final String SET_MTIME = "__lsu1_mt ";
+
+    private static final byte[] NOT_FOUND_LINE = String.valueOf(NOT_FOUND).getBytes(UTF_8);
+
+    private static final Map<Shell, Integer> installed = new WeakHashMap<>();
+
+    private ShellFunctions() {}
+
+    /**
+     * The script has to be sent in the same task or job as the function call using it,
+     * as tasks submitted by other threads can run in between.
+     * Call {@link #markInstalled(Shell)} once the function call is known to have found
+     * the functions.
+     * @return the script that has to run before the next function call in the shell,
+     *         or an empty string if the library is already installed.
+     */
+    @NonNull
+    public static String require(@NonNull Shell shell) {
+        synchronized (installed) {
+            Integer v = installed.get(shell);
+            if (v != null && v == VERSION)
+                return "";
+        }
+        Utils.log("SHELLFN", "install library v" + VERSION);
+        return LIBRARY;
+    }
+
+    /**
+     * Mark the library as installed in the shell, after a function call sent together
+     * with the script from {@link #require(Shell)} has found the functions.
+     */
+    public static void markInstalled(@NonNull Shell shell) {
+        synchronized (installed) {
+            installed.put(shell, VERSION);
+        }
+    }
+
+    /**
+     * Mark the library as not installed in the shell, for example after a function
+     * call failed with {@link #NOT_FOUND}.
+     */
+    public static void invalidate(@NonNull Shell shell) {
+        synchronized (installed) {
+            installed.remove(shell);
+        }
+    }
+
+    /**
+     * Call a function in a raw task. These functions always return 0, so {@code fallback}
+     * only runs if the function is missing and the call fails with {@link #NOT_FOUND}.
+     * It has to consume the inputs of the function and print {@link #NOT_FOUND} in place
+     * of its final status line.
+     */
+    static String call(String fn, String args, String fallback) {
+        return fn + args + "||" + fallback + "\n";
+    }
+
+    /**
+     * Read the status line printed by a function called with {@link #call}.
+     * Other lines, such as the error message of the shell about a missing function,
+     * are skipped.
+     * @return false if the function was missing from the shell.
+     */
+    static boolean readStatus(InputStream in) throws IOException {
+        for (;;) {
+            int c, len = 0;
+            boolean match = true;
+            while ((c = in.read()) != '\n') {
+                if (c < 0)
+                    throw new EOFException();
+                match &= len < NOT_FOUND_LINE.length && c == NOT_FOUND_LINE[len];
+                ++len;
+            }
+            if (len == 0)
+                return true;
+            if (match && len == NOT_FOUND_LINE.length)
+                return false;
+        }
+    }
+}
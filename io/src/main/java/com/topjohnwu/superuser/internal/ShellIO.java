@@ -16,18 +16,17 @@
 
 package com.topjohnwu.superuser.internal;
 
-import static com.topjohnwu.superuser.internal.IOFactory.JUNK;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
 import androidx.annotation.NonNull;
 
+import com.topjohnwu.superuser.Shell;
 import com.topjohnwu.superuser.ShellUtils;
 import com.topjohnwu.superuser.io.SuFile;
 import com.topjohnwu.superuser.io.SuRandomAccessFile;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Locale;
 
 class ShellIO extends SuRandomAccessFile implements DataInputImpl, DataOutputImpl {
 
@@ -91,24 +90,29 @@ class ShellIO extends SuRandomAccessFile implements DataInputImpl, DataOutputImp
     }
 
     private void write0(@NonNull byte[] b, int off, int len) throws IOException {
-        file.getShell().execTask((in, out, err) -> {
+        Shell shell = file.getShell();
+        shell.execTask((in, out, err) -> {
             String cmd;
+            // Consume the data if the function is missing
+            String fallback = "{ dd of=/dev/null bs=" + len + " count=1 2>/dev/null;echo "
+                    + ShellFunctions.NOT_FOUND + ";}";
             if (fileOff == 0) {
-                cmd = String.format(Locale.ROOT,
-                        "dd of=%s bs=%d count=1 %s 2>/dev/null; echo\n",
-                        file.getEscapedPath(), len, getConv());
+                cmd = ShellFunctions.call(ShellFunctions.WRITE, file.getEscapedPath()
+                        + ' ' + len + ' ' + getConv(), fallback);
             } else {
-                cmd = String.format(Locale.ROOT,
-                        "dd of=%s ibs=%d count=1 obs=%d seek=1 %s 2>/dev/null; echo\n",
-                        file.getEscapedPath(), len, fileOff, getConv());
+                cmd = ShellFunctions.call(ShellFunctions.SEEK_WRITE, file.getEscapedPath()
+                        + ' ' + len + ' ' + fileOff + ' ' + getConv(), fallback);
             }
             Utils.log(TAG, cmd);
-            in.write(cmd.getBytes(UTF_8));
-            in.flush();
-            in.write(b, off, len);
-            in.flush();
-            // Wait till the operation is done
-            out.read(JUNK);
+            String lib;
+            do {
+                lib = ShellFunctions.require(shell);
+                in.write((lib + cmd).getBytes(UTF_8));
+                in.flush();
+                in.write(b, off, len);
+                in.flush();
+                // Wait till the operation is done
+            } while (!installed(shell, lib, ShellFunctions.readStatus(out)));
         });
         fileOff += len;
     }
@@ -165,23 +169,27 @@ class ShellIO extends SuRandomAccessFile implements DataInputImpl, DataOutputImp
             return 0;
         int[] total = new int[1];
         int len = count * bs;
-        file.getShell().execTask((in, out, err) -> {
+        Shell shell = file.getShell();
+        shell.execTask((in, out, err) -> {
             int off = _off;
-            String cmd = String.format(Locale.ROOT,
-                    "dd if=%s ibs=%d skip=%d count=%d obs=%d 2>/dev/null; echo >&2\n",
-                    file.getEscapedPath(), bs, skip, count, len);
+            String cmd = ShellFunctions.call(ShellFunctions.READ, file.getEscapedPath()
+                    + ' ' + bs + ' ' + skip + ' ' + count + ' ' + len,
+                    "echo " + ShellFunctions.NOT_FOUND + ">&2");
             Utils.log(TAG, cmd);
-            in.write(cmd.getBytes(UTF_8));
-            in.flush();
-
-            // Poll until we read everything
-            while ((total[0] != len && err.available() == 0) || out.available() != 0) {
-                int read = out.read(b, off, out.available());
-                off += read;
-                total[0] += read;
-            }
-            // Wait till the operation is done for synchronization
-            err.read(JUNK);
+            String lib;
+            do {
+                lib = ShellFunctions.require(shell);
+                in.write((lib + cmd).getBytes(UTF_8));
+                in.flush();
+
+                // Poll until we read everything
+                while ((total[0] != len && err.available() == 0) || out.available() != 0) {
+                    int read = out.read(b, off, out.available());
+                    off += read;
+                    total[0] += read;
+                }
+                // Wait till the operation is done for synchronization
+            } while (!installed(shell, lib, ShellFunctions.readStatus(err)));
         });
         if (total[0] == 0 || total[0] != len)
             eof = true;
@@ -247,18 +255,40 @@ class ShellIO extends SuRandomAccessFile implements DataInputImpl, DataOutputImp
                 throw new IOException("Cannot clear file");
             return;
         }
-        file.getShell().execTask((in, out, err) -> {
-            String cmd = String.format(Locale.ROOT,
-                    "dd of=%s bs=%d seek=1 count=0 2>/dev/null; echo\n",
-                    file.getEscapedPath(), newLength);
+        Shell shell = file.getShell();
+        shell.execTask((in, out, err) -> {
+            String cmd = ShellFunctions.call(ShellFunctions.TRUNCATE, file.getEscapedPath()
+                    + ' ' + newLength, "echo " + ShellFunctions.NOT_FOUND);
             Utils.log(TAG, cmd);
-            in.write(cmd.getBytes(UTF_8));
-            in.flush();
-            // Wait till the operation is done
-            out.read(JUNK);
+            String lib;
+            do {
+                lib = ShellFunctions.require(shell);
+                in.write((lib + cmd).getBytes(UTF_8));
+                in.flush();
+                // Wait till the operation is done
+            } while (!installed(shell, lib, ShellFunctions.readStatus(out)));
         });
     }
 
+    /**
+     * Record whether a function call found the library.
+     * @return false if the call has to be retried with the library installed again.
+     */
+    private static boolean installed(Shell shell, String lib, boolean found)
+            throws IOException {
+        if (found) {
+            if (!lib.isEmpty())
+                ShellFunctions.markInstalled(shell);
+            return true;
+        }
+        if (lib.isEmpty()) {
+            // The functions are missing in the shell, install them again
+            ShellFunctions.invalidate(shell);
+            return false;
+        }
+        throw new IOException("Cannot install shell functions");
+    }
+
     @Override
     public long length() {
         return file.length();
@@ -24,6 +24,7 @@ import androidx.annotation.Nullable;
 import com.topjohnwu.superuser.Shell;
 import com.topjohnwu.superuser.ShellUtils;
 import com.topjohnwu.superuser.internal.IOFactory;
+import com.topjohnwu.superuser.internal.ShellFunctions;
 import com.topjohnwu.superuser.internal.Utils;
 import com.topjohnwu.superuser.nio.ExtendedFile;
 import com.topjohnwu.superuser.nio.FileSystemManager;
@@ -133,6 +134,29 @@ public class SuFile extends ExtendedFile {
         return ShellUtils.fastCmdResult(getShell(), c.replace("@@", escapedPath));
     }
 
+    private static Shell.Result fn(Shell shell, String c) {
+        Shell.Job job = shell.newJob();
+        String lib = ShellFunctions.require(shell);
+        if (!lib.isEmpty())
+            job.add(lib);
+        Shell.Result r = job.add(c).to(null).exec();
+        if (!lib.isEmpty() && r.getCode() >= 0 && r.getCode() != ShellFunctions.NOT_FOUND)
+            ShellFunctions.markInstalled(shell);
+        return r;
+    }
+
+    private boolean fnBool(String fn, String args) {
+        Shell shell = getShell();
+        String c = fn + escapedPath + args;
+        Shell.Result r = fn(shell, c);
+        if (r.getCode() == ShellFunctions.NOT_FOUND) {
+            // The functions are missing in the shell, install them again
+            ShellFunctions.invalidate(shell);
+            r = fn(shell, c);
+        }
+        return r.isSuccess();
+    }
+
     /**
      * Set the {@code Shell} instance to be used internally for all operations.
      * This shell is also used in {@link SuFileInputStream}, {@link SuFileOutputStream}, and
@@ -173,7 +197,7 @@ public class SuFile extends ExtendedFile {
 
     @Override
     public boolean createNewFile() {
-        return cmdBool("[ ! -e @@ ] && echo -n > @@");
+        return fnBool(ShellFunctions.CREATE, "");
     }
 
     /**
@@ -216,7 +240,7 @@ public class SuFile extends ExtendedFile {
      */
     @Override
     public boolean delete() {
-        return cmdBool("rm -f @@ || rmdir -f @@");
+        return fnBool(ShellFunctions.DELETE, "");
     }
 
     /**
@@ -535,7 +559,7 @@ public class SuFile extends ExtendedFile {
     public boolean setLastModified(long time) {
         DateFormat df = new SimpleDateFormat("yyyyMMddHHmm", Locale.US);
         String date = df.format(new Date(time));
-        return cmdBool("[ -e @@ ] && touch -t " + date + " @@");
+        return fnBool(ShellFunctions.SET_MTIME, " " + date);
     }
 
     /**
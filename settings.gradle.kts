@@ -17,3 +17,4 @@ dependencyResolutionManagement {
 }
 include(":example", ":core", ":nio", ":io")
 include(":service", ":service:shared", ":service:jar")
+include(":benchmark")